@@ -18,13 +18,10 @@
 package il.ac.technion.cs.d2rqUpdate;
 
 import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.ExecutionEngine;
+import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.SQLTrace;
 import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.UpdateStatement;
 
-import java.io.StringReader;
 import java.sql.Connection;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -35,9 +32,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import net.sf.jsqlparser.parser.CCJSqlParser;
-import net.sf.jsqlparser.parser.Token;
-
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -52,7 +46,6 @@ import de.fuberlin.wiwiss.d2rq.algebra.MutableRelation;
 import de.fuberlin.wiwiss.d2rq.algebra.Relation;
 import de.fuberlin.wiwiss.d2rq.algebra.RelationName;
 import de.fuberlin.wiwiss.d2rq.algebra.TripleRelation;
-import de.fuberlin.wiwiss.d2rq.dbschema.DatabaseSchemaInspector;
 import de.fuberlin.wiwiss.d2rq.expr.Expression;
 import de.fuberlin.wiwiss.d2rq.nodes.NodeMaker;
 import de.fuberlin.wiwiss.d2rq.sql.ConnectedDB;
@@ -65,7 +58,7 @@ public abstract class AbstractTripleUpdater {
 	static Log log = LogFactory.getLog(AbstractTripleUpdater.class);
 	
 	private static final int RELATION_TOKEN_INDEX = 0;
-	private static final int ATTRIBUTE_TOKEN_NUMBER = 2;
+	private static final int ATTRIBUTE_TOKEN_NUMBER = 1;
 	
 	// this class is used to return multiple values from the method 
 		// 'extractValues'
@@ -87,35 +80,7 @@ public abstract class AbstractTripleUpdater {
 
 			@Override
 			public int hashCode() {
-				final int prime = 31;
-				int result = 1;
-				result =
-						prime * result
-								+ ((aliases == null) ? 0 : aliases.hashCode());
-				result =
-						prime
-								* result
-								+ ((database == null) ? 0 : database.hashCode());
-				result =
-						prime * result
-								+ ((joins == null) ? 0 : joins.hashCode());
-				result =
-						prime
-								* result
-								+ ((objectValues == null) ? 0 : objectValues
-										.hashCode());
-				result =
-						prime
-								* result
-								+ ((projections == null) ? 0 : projections
-										.hashCode());
-				result =
-						prime
-								* result
-								+ ((subjectValues == null) ? 0 : subjectValues
-										.hashCode());
-				result = prime * result + (succeded ? 1231 : 1237);
-				return result;
+				return hash;
 			}
 
 			@Override
@@ -130,6 +95,9 @@ public abstract class AbstractTripleUpdater {
 					return false;
 				}
 				ExtractValuesInfo other = (ExtractValuesInfo) obj;
+				if (hash != other.hash) {
+					return false;
+				}
 				if (aliases == null) {
 					if (other.aliases != null) {
 						return false;
@@ -186,6 +154,7 @@ public abstract class AbstractTripleUpdater {
 			private final Map<Attribute, String> objectValues;
 			private final Set<Attribute> projections;
 			private final AliasMap aliases;
+			private final int hash;
 			
 			public Set<Attribute> getProjections() {
 				return projections;
@@ -207,6 +176,7 @@ public abstract class AbstractTripleUpdater {
 				this.joins = Collections.emptySet();
 				this.projections = Collections.emptySet();
 				this.aliases = AliasMap.NO_ALIASES;
+				this.hash = computeHashCode();
 			}
 			
 			public AliasMap getAliases() {
@@ -221,11 +191,50 @@ public abstract class AbstractTripleUpdater {
 					AliasMap aliases) {
 				this.succeded = true;
 				this.database = database;
-				this.subjectValues = subjectValues;
-				this.objectValues = objectValues;
-				this.joins = joins;
-				this.projections = projections;
+				this.subjectValues = AttributeValues.copyOf(subjectValues);
+				this.objectValues = AttributeValues.copyOf(objectValues);
+				this.joins = Collections.unmodifiableSet(joins);
+				this.projections = Collections.unmodifiableSet(projections);
 				this.aliases = aliases;
+				this.hash = computeHashCode();
+			}
+			
+			private ExtractValuesInfo(ExtractValuesInfo info, 
+					Map<Attribute, String> subjectValues) {
+				this.succeded = info.succeded;
+				this.database = info.database;
+				this.subjectValues = AttributeValues.copyOf(subjectValues);
+				this.objectValues = info.objectValues;
+				this.joins = info.joins;
+				this.projections = info.projections;
+				this.aliases = info.aliases;
+				this.hash = computeHashCode();
+			}
+			
+			/**
+			 * @return the info with the subject values replaced, the info
+			 * itself is immutable
+			 */
+			public ExtractValuesInfo withSubjectValues(
+					Map<Attribute, String> subjectValues) {
+				return new ExtractValuesInfo(this, subjectValues);
+			}
+			
+			// the infos are kept in hash sets during the whole update, so 
+			// the hash is computed once, from the immutable values
+			private int computeHashCode() {
+				final int prime = 31;
+				int result = 1;
+				result = prime * result + 
+					((aliases == null) ? 0 : aliases.hashCode());
+				result = prime * result + 
+					((database == null) ? 0 : database.hashCode());
+				result = prime * result + joins.hashCode();
+				result = prime * result + objectValues.hashCode();
+				result = prime * result + projections.hashCode();
+				result = prime * result + subjectValues.hashCode();
+				result = prime * result + (succeded ? 1231 : 1237);
+				return result;
 			}
 			
 			public boolean isSucceded() {
@@ -243,14 +252,8 @@ public abstract class AbstractTripleUpdater {
 
 	protected static class SubjectValuesTablePair {
 			@Override
-			public int hashCode() { // automatically generated
-				final int prime = 31;
-				int result = 1;
-				result = prime * result + 
-					((subjectValues == null) ? 0 : subjectValues.hashCode());
-				result = prime * result + 
-					((table == null) ? 0 : table.hashCode());
-				return result;
+			public int hashCode() {
+				return hash;
 			}
 		
 			@Override
@@ -265,6 +268,9 @@ public abstract class AbstractTripleUpdater {
 					return false;
 				}
 				SubjectValuesTablePair other = (SubjectValuesTablePair) obj;
+				if (hash != other.hash) {
+					return false;
+				}
 				if (subjectValues == null) {
 					if (other.subjectValues != null) {
 						return false;
@@ -293,40 +299,47 @@ public abstract class AbstractTripleUpdater {
 				RelationName table) {
 				this.subjectValues = map;
 				this.table = table;
+				final int prime = 31;
+				int result = 1;
+				result = prime * result + 
+					((subjectValues == null) ? 0 : subjectValues.hashCode());
+				result = prime * result + 
+					((table == null) ? 0 : table.hashCode());
+				this.hash = result;
 			}
 		
 			private final Map<Attribute, String> subjectValues;
 			private final RelationName table;
+			private final int hash;
 		}
 
-	protected final Collection<TripleRelation> propertyBridges;
+	protected final GraphD2RQUpdate graph;
+	protected final PropertyBridgeIndex propertyBridges;
+	protected final SQLTrace sqlTrace;
 	
-	public AbstractTripleUpdater(Collection<TripleRelation> propertyBridges) {
-		this.propertyBridges = propertyBridges;
+	public AbstractTripleUpdater(GraphD2RQUpdate graph) {
+		this.graph = graph;
+		this.propertyBridges = graph.getPropertyBridgeIndex();
+		this.sqlTrace = graph.getUpdateConfiguration().createSQLTrace();
+	}
+	
+	protected ExecutionEngine createExecutionEngine() {
+		return new ExecutionEngine(graph.getUpdateConfiguration(), 
+				graph.getUpdateMetrics());
 	}
 	
 	protected static class ObjectValuesProjectionsPair {
 		public ObjectValuesProjectionsPair(Map<Attribute, String> objectValues,
 				Set<Attribute> projections) {
-			this.objectValues = objectValues;
-			this.projections = projections;
+			this.objectValues = AttributeValues.copyOf(objectValues);
+			this.projections = Collections.unmodifiableSet(projections);
+			final int prime = 31;
+			this.hash = prime * (prime + this.objectValues.hashCode()) + 
+				this.projections.hashCode();
 		}
 		@Override
 		public int hashCode() {
-			final int prime = 31;
-			int result = 1;
-
-			result =
-					prime
-							* result
-							+ ((objectValues == null) ? 0 : objectValues
-									.hashCode());
-			result =
-					prime
-							* result
-							+ ((projections == null) ? 0 : projections
-									.hashCode());
-			return result;
+			return hash;
 		}
 		@Override
 		public boolean equals(Object obj) {
@@ -341,22 +354,9 @@ public abstract class AbstractTripleUpdater {
 			}
 			ObjectValuesProjectionsPair other =
 					(ObjectValuesProjectionsPair) obj;
-		
-			if (objectValues == null) {
-				if (other.objectValues != null) {
-					return false;
-				}
-			} else if (!objectValues.equals(other.objectValues)) {
-				return false;
-			}
-			if (projections == null) {
-				if (other.projections != null) {
-					return false;
-				}
-			} else if (!projections.equals(other.projections)) {
-				return false;
-			}
-			return true;
+			return hash == other.hash && 
+				objectValues.equals(other.objectValues) && 
+				projections.equals(other.projections);
 		}
 		public Map<Attribute, String> getObjectValues() {
 			return objectValues;
@@ -366,6 +366,7 @@ public abstract class AbstractTripleUpdater {
 		}
 		private final Map<Attribute, String> objectValues;
 		private final Set<Attribute> projections;
+		private final int hash;
 	}
 	
 	/**
@@ -385,61 +386,177 @@ public abstract class AbstractTripleUpdater {
 
 	public abstract void execute();
 
-	@SuppressWarnings("unchecked")
-	protected boolean doesCorrespondingRowAlreadyExist(ConnectedDB database,
-		RelationName table, Map<Attribute, String> subjectValues, 
-		Connection connection) {
-		DatabaseSchemaInspector inspector =
-			new DatabaseSchemaInspector(database);
-		
-		Set<Attribute> primaryKeys = 
-			new HashSet<Attribute>(inspector.primaryKeyColumns(table));
+	/**
+	 * A row that is inserted if it does not exist yet, or updated otherwise.
+	 * The decision is taken after the existence of all the rows is checked 
+	 * at once.
+	 * 
+	 * @author Vadim Eisenberg <Vadim.Eisenberg@gmail.com>
+	 */
+	protected static class RowToInsertOrUpdate {
+		private final ConnectedDB database;
+		private final RelationName table;
+		private final Map<Attribute, String> subjectValues;
+		private final Map<Attribute, String> key;
+		private final Map<Attribute, String> objectValuesToDelete;
+		private final Map<Attribute, String> objectValuesToAdd;
+		
+		/**
+		 * @param key the values of the primary keys of the row, or its 
+		 * subject values if they contain no primary key column
+		 */
+		public RowToInsertOrUpdate(ConnectedDB database, RelationName table,
+			Map<Attribute, String> subjectValues, Map<Attribute, String> key,
+			Map<Attribute, String> objectValuesToDelete,
+			Map<Attribute, String> objectValuesToAdd) {
+			this.database = database;
+			this.table = table;
+			this.subjectValues = subjectValues;
+			this.key = key;
+			this.objectValuesToDelete = objectValuesToDelete;
+			this.objectValuesToAdd = objectValuesToAdd;
+		}
+		
+		public ConnectedDB getDatabase() {
+			return database;
+		}
+		public RelationName getTable() {
+			return table;
+		}
+		public Map<Attribute, String> getSubjectValues() {
+			return subjectValues;
+		}
+		public Map<Attribute, String> getKey() {
+			return key;
+		}
+		public Map<Attribute, String> getObjectValuesToDelete() {
+			return objectValuesToDelete;
+		}
+		public Map<Attribute, String> getObjectValuesToAdd() {
+			return objectValuesToAdd;
+		}
+		/**
+		 * @return the values of the row to insert
+		 */
+		public Map<Attribute, String> getValues() {
+			Map<Attribute, String> values = 
+				new HashMap<Attribute, String>(subjectValues);
+			values.putAll(objectValuesToAdd);
+			return values;
+		}
+	}
+	
+	protected Map<Attribute, String> getValuesForPrimaryKeys(
+		ConnectedDB database, RelationName table, 
+		Map<Attribute, String> values) {
+		List<Attribute> primaryKeys = 
+			SchemaMetadataCache.get(database).primaryKeyColumns(table);
 		
 		log.debug("the primary keys of table " + table + " are " + primaryKeys);
 		
 		Map<Attribute, String> valuesForPrimaryKeys = 
-			new HashMap<Attribute, String>(subjectValues.size());
+			new HashMap<Attribute, String>(primaryKeys.size());
 		
 		for(Attribute primaryKey : primaryKeys) {
-			if (subjectValues.containsKey(primaryKey)) {
-				valuesForPrimaryKeys.put(primaryKey,
-						subjectValues.get(primaryKey));
+			if (values.containsKey(primaryKey)) {
+				valuesForPrimaryKeys.put(primaryKey, values.get(primaryKey));
 			}
 		}
-		
-		log.debug("the subjectValues are " + subjectValues);
-		log.debug("the valuesForPrimaryKeys are " + valuesForPrimaryKeys);
-		
-			String selectSQLString =
-					new SelectStatementBuilder(table, database, primaryKeys,
-							valuesForPrimaryKeys).getSQLStatement()
-							+ " LIMIT 1";
-			log.debug("select sqlString = " + selectSQLString);
-		
-			try {
-				Statement statement = connection.createStatement();
-				ResultSet resultSet = statement.executeQuery(selectSQLString);
-				return resultSet.next();
-			} catch (SQLException exception) {
-				throw new D2RQException(exception.getMessage() + ": "
-						+ selectSQLString);
-			}
+		return valuesForPrimaryKeys;
+	}
+	
+	/**
+	 * @param values the values of the row, the subject values included
+	 * @return the values of the primary key of the row, or the subject 
+	 * values if the table has no primary key or the values contain none of 
+	 * its columns
+	 */
+	protected Map<Attribute, String> getRowKey(ConnectedDB database, 
+		RelationName table, Map<Attribute, String> subjectValues,
+		Map<Attribute, String> values) {
+		Map<Attribute, String> key = 
+			getValuesForPrimaryKeys(database, table, values);
+		if (key.isEmpty()) {
+			log.debug("no primary key values for a row of " + table + 
+					", the subject values " + subjectValues + " are used");
+			return subjectValues;
+		}
+		return key;
+	}
+	
+	/**
+	 * Checks the existence of all the rows by a few queries, instead of a 
+	 * query per row. The rows inserted or deleted by the statements already
+	 * added to the engine are not queried.
+	 * @param engine
+	 * @param rows
+	 * @return the probe that tells which rows exist
+	 */
+	protected RowExistenceProbe probeRowExistence(ExecutionEngine engine,
+		Collection<RowToInsertOrUpdate> rows) {
+		RowExistenceProbe probe = 
+			new RowExistenceProbe(graph.getUpdateMetrics(), sqlTrace);
+		for (RowToInsertOrUpdate row : rows) {
+			if (engine.getPendingRowExistence(row.getDatabase(), 
+					row.getTable(), row.getKey()) == null) {
+				probe.add(row.getDatabase(), row.getTable(), row.getKey());
+			}
 		}
+		probe.execute();
+		return probe;
+	}
+
+	/**
+	 * @param engine
+	 * @param probe the probe that checked the existence of the row
+	 * @param row
+	 * @return whether the row exists after the statements already added to
+	 * the engine are executed
+	 */
+	protected boolean rowExists(ExecutionEngine engine, 
+		RowExistenceProbe probe, RowToInsertOrUpdate row) {
+		Boolean pendingRowExistence = engine.getPendingRowExistence(
+				row.getDatabase(), row.getTable(), row.getKey());
+		if (pendingRowExistence != null) {
+			return pendingRowExistence;
+		}
+		return probe.exists(row.getDatabase(), row.getTable(), row.getKey());
+	}
 
 	protected void insertNewRow(ExecutionEngine engine, ConnectedDB database, 
 		RelationName table, Map<Attribute, String> values, 
 		Map<Attribute, String> subjectValues, Connection connection) {
 		
-			String sqlString =
-					new InsertStatementBuilder(table, database, values)
-							.getSQLStatement();
+			UpdateStatement statement = createUpdateStatement(
+					new InsertStatementBuilder(table, database, values),
+					values, 1, UpdateStatement.Type.INSERT, subjectValues);
 			
-			log.debug("insert sqlString = " + sqlString);
-			engine.add(new UpdateStatement(database, table, 
-					values, sqlString, 1,
-					UpdateStatement.Type.INSERT, subjectValues));
+			log.debug("insert sqlString = " + statement.getSqlString());
+			engine.add(statement);
 		}
 
+	/**
+	 * @param builder the builder of the statement, the statement is prepared
+	 * from its SQL template 
+	 * @param updatedAttributes
+	 * @param minimalNumberOfUpdatedRows
+	 * @param updateType
+	 * @param subjectValues
+	 * @return
+	 */
+	protected static UpdateStatement createUpdateStatement(
+		StatementBuilder builder, Map<Attribute, String> updatedAttributes, 
+		int minimalNumberOfUpdatedRows, UpdateStatement.Type updateType, 
+		Map<Attribute, String> subjectValues) {
+		List<String> parameters = new ArrayList<String>();
+		String sqlTemplate = builder.getSQLTemplate(parameters);
+		
+		return new UpdateStatement(builder.getDatabase(), builder.getTable(),
+				updatedAttributes, builder.getSQLStatement(), sqlTemplate, 
+				parameters, minimalNumberOfUpdatedRows, updateType, 
+				subjectValues);
+	}
+
 	/**
 	 * @param valuesAttributesThatAreNotInCondition
 	 * @return
@@ -497,12 +614,13 @@ public abstract class AbstractTripleUpdater {
 	 */
 	private ExtractValuesInfo filterInfoByTable(ExtractValuesInfo info, 
 		RelationName table) {
+		UpdatePlan plan = propertyBridges.getPlan(info);
 			
 		Map<Attribute, String> subjectValues = 
-			getValuesByTable(info.getSubjectValues(), info, table);
+			getValuesByTable(info.getSubjectValues(), plan, table);
 		
 		Map<Attribute, String> objectValues = 
-			getValuesByTable(info.getObjectValues(), info, table);
+			getValuesByTable(info.getObjectValues(), plan, table);
 	
 		boolean emptySubjectsOrObjectsAllowed = 
 			allowEmptySubjectsOrObjectsWhileHandlingJoins(); 
@@ -537,7 +655,7 @@ public abstract class AbstractTripleUpdater {
 		}
 		
 		Set<Attribute> projections = 
-			getValuesByTable(info.getProjections(), info, table);
+			getValuesByTable(info.getProjections(), plan, table);
 	
 		
 		ExtractValuesInfo infoForTheTable =
@@ -556,7 +674,7 @@ public abstract class AbstractTripleUpdater {
 	abstract protected boolean allowEmptySubjectsOrObjectsWhileHandlingJoins();
 
 	private Map<Attribute, String> getValuesByTable(Map<Attribute, String> map, 
-			ExtractValuesInfo info,
+			UpdatePlan plan,
 		RelationName table) {
 		Map<Attribute, String> valuesByTable = 
 			new HashMap<Attribute, String>();
@@ -564,8 +682,7 @@ public abstract class AbstractTripleUpdater {
 		for (Attribute attribute : map.keySet()) {
 			
 			Set<Attribute> equivalenceClassOfTheAttribute = 
-				getEquivalenceClassOfTheAttribute(attribute,info.getJoins(),
-						info.getDatabase());
+				plan.getEquivalenceClass(attribute);
 			log.debug("equivalence class of the attribute " + attribute + " is "
 					+ equivalenceClassOfTheAttribute);
 			
@@ -582,13 +699,12 @@ public abstract class AbstractTripleUpdater {
 	}
 	
 	private Set<Attribute> getValuesByTable(Set<Attribute> values, 
-			ExtractValuesInfo info, RelationName table) {
+			UpdatePlan plan, RelationName table) {
 		Set<Attribute> valuesByTable = new HashSet<Attribute>(values.size());
 		
 		for (Attribute attribute : values) {
 			Set<Attribute> equivalenceClassOfTheAttribute = 
-				getEquivalenceClassOfTheAttribute(attribute,info.getJoins(),
-						info.getDatabase());
+				plan.getEquivalenceClass(attribute);
 			
 			for(Attribute attributeInTheClass : equivalenceClassOfTheAttribute){
 				if (belongsToTable(attributeInTheClass,table)) {
@@ -607,48 +723,6 @@ public abstract class AbstractTripleUpdater {
 		return attribute.relationName().equals(table);
 	}
 
-	/**
-	 * @param attribute
-	 * @param database 
-	 * @param set 
-	 * @return
-	 */
-	private Set<Attribute> getEquivalenceClassOfTheAttribute(Attribute attribute, 
-			Set<Join> joins, ConnectedDB database) {
-		Set<Attribute> equivalenceClass = new HashSet<Attribute>();
-		equivalenceClass.add(attribute);
-		
-		while(true) { // break at the end of the loop if no element was added
-			boolean newElementAdded = false;
-			
-			for (Join join : joins) {
-				if (join.attributes1().size() != 1 || 
-						join.attributes2().size() != 1){
-					log.error("joins with several attributes are currently " + 
-							"unsupported");
-					continue;
-				}
-				Attribute attribute1 = (Attribute)join.attributes1().get(0);  
-				Attribute attribute2 = (Attribute)join.attributes2().get(0);
-					
-				if (equivalenceClass.contains(attribute1) && 
-						!equivalenceClass.contains(attribute2)) {
-					equivalenceClass.add(attribute2);
-					newElementAdded = true;
-				} else if (equivalenceClass.contains(attribute2) && 
-						!equivalenceClass.contains(attribute1)) {
-					equivalenceClass.add(attribute1);
-					newElementAdded = true;
-				}
-			}
-			if (!newElementAdded) {
-				break;
-			}
-		}
-				
-		return equivalenceClass;
-	}
-
 	protected void filterOutByConditionAttributes(ExtractValuesInfo info,
 		Map<Attribute, String> subjectValuesToFilter, 
 		Map<Attribute, String> objectValuesToFilter) {
@@ -836,6 +910,19 @@ public abstract class AbstractTripleUpdater {
 	public static Set<ExtractValuesInfo> 
 		extractValues(Collection<Triple> triples, 
 			Collection<TripleRelation> tripleRelations) {
+		return extractValues(triples, 
+				new PropertyBridgeIndex(tripleRelations));
+	}
+	
+	/**
+	 * @param triples
+	 * @param propertyBridges the index of the triple relations, each triple 
+	 * is matched only against the relations that can produce its predicate
+	 * @return
+	 */
+	public static Set<ExtractValuesInfo> 
+		extractValues(Collection<Triple> triples, 
+			PropertyBridgeIndex propertyBridges) {
 		Set<ExtractValuesInfo> extractedValues = 
 			new HashSet<ExtractValuesInfo>();
 		
@@ -849,13 +936,15 @@ public abstract class AbstractTripleUpdater {
 			HashMap<Node, Relation> ();
 		
 		for (Triple triple : triples) {
+			List<TripleRelation> tripleRelations = 
+				propertyBridges.getCandidates(triple.getPredicate());
 			if (triple.getSubject().isBlank() || triple.getObject().isBlank()) {
-				fillMapsForBlankNodes(triple, tripleRelations,
+				fillMapsForBlankNodes(triple, tripleRelations, propertyBridges,
 						extractedValues,blankNodeSubjectValues,
 						blankNodeObjectValues, blankNodeSideEffectsForSubject);
 			} else {
 				extractValuesForNonBlankNodes(triple, tripleRelations,
-						extractedValues);
+						propertyBridges, extractedValues);
 			}
 		}
 		
@@ -904,7 +993,8 @@ public abstract class AbstractTripleUpdater {
 	
 	/**
 	 * @param triple
-	 * @param tripleRelations
+	 * @param tripleRelations the relations that can produce the predicate
+	 * @param propertyBridges memoizes the side effects
 	 * @param extractedValues
 	 * @param blankNodeSideEffectsForSubject 
 	 * @param blankNodeObjectValues 
@@ -912,6 +1002,7 @@ public abstract class AbstractTripleUpdater {
 	 */
 	private static void fillMapsForBlankNodes(Triple triple,
 		Collection<TripleRelation> tripleRelations,
+		PropertyBridgeIndex propertyBridges,
 		Set<ExtractValuesInfo> extractedValues, 
 		Map<Node, HashMap<Attribute, String>> blankNodeSubjectValues,
 		Map<Node, HashMap<Attribute, String>> blankNodeObjectValues, 
@@ -941,34 +1032,24 @@ public abstract class AbstractTripleUpdater {
 
 		for (TripleRelation tripleRelation : tripleRelations) {
 			
-			MutableRelation sideEffectsForPredicate =
-				getSideEffects(tripleRelation, TripleRelation.PREDICATE,
-						triple.getPredicate());
-
-			if (sideEffectsForPredicate == null) {
-				continue;
-			}
-		
-			MutableRelation sideEffectsForSubject =
-					getSideEffects(tripleRelation, TripleRelation.SUBJECT,
-							triple.getSubject());
+			PropertyBridgeIndex.SideEffects sideEffectsForSubject =
+				propertyBridges.getSideEffects(tripleRelation, 
+						TripleRelation.SUBJECT, triple.getSubject());
 
 			if (sideEffectsForSubject != null) {
-				extractValues(sideEffectsForSubject, tripleRelation
-						.baseRelation().database(), subjectValues);
+				subjectValues.putAll(sideEffectsForSubject.getValues());
 
 				log.debug("subjectValues = " + subjectValues);
 				blankNodeSubjectValues.put(blankNode, subjectValues);
 				blankNodeSideEffectsForSubject.put(blankNode,
-						sideEffectsForSubject.immutableSnapshot());
+						sideEffectsForSubject.getRelation());
 			}
 			
-			MutableRelation sideEffectsForObject =
-					getSideEffects(tripleRelation, TripleRelation.OBJECT,
-							triple.getObject());
+			PropertyBridgeIndex.SideEffects sideEffectsForObject =
+				propertyBridges.getSideEffects(tripleRelation, 
+						TripleRelation.OBJECT, triple.getObject());
 			if (sideEffectsForObject != null) {
-				extractValues(sideEffectsForObject, tripleRelation
-						.baseRelation().database(), objectValues);
+				objectValues.putAll(sideEffectsForObject.getValues());
 				log.debug("objectValues = " + objectValues);
 				blankNodeObjectValues.put(blankNode, objectValues);
 			}
@@ -977,11 +1058,19 @@ public abstract class AbstractTripleUpdater {
 	}
 	
 
+	/**
+	 * @param triple
+	 * @param tripleRelations the relations that can produce the predicate
+	 * @param propertyBridges memoizes the side effects
+	 * @param extractedValues
+	 */
 	private static void extractValuesForNonBlankNodes(Triple triple,
 		Collection<TripleRelation> tripleRelations,
+		PropertyBridgeIndex propertyBridges,
 		Set<ExtractValuesInfo> extractedValues) {
 		for (TripleRelation tripleRelation : tripleRelations) {
-			ExtractValuesInfo info = extractValues(triple, tripleRelation);
+			ExtractValuesInfo info = 
+				extractValues(triple, tripleRelation, propertyBridges);
 			if (info.isSucceded()) {
 				extractedValues.add(info);
 			}
@@ -1044,63 +1133,48 @@ public abstract class AbstractTripleUpdater {
 		getUnquotedTokenFromQuotedQualifiedAttribute(
 			String quotedQualifiedAttribute,
 			int tokenIndex){ 
-			Token[] tokens = getTokens(quotedQualifiedAttribute);
-			if (tokens.length != 3 || !tokens[1].toString().equals(".")) {
-				throw new D2RQException("Attribute \"" + 
-						quotedQualifiedAttribute + 
-						"\" is not in \"table.column\" notation",
-						D2RQException.SQL_INVALID_ATTRIBUTENAME);
-			}
-			String tokenString = tokens[tokenIndex].toString();
-			// unquote
-			return tokenString.substring(1, tokenString.length() - 1);
+			return ConditionScanner.splitQuotedQualifiedAttribute(
+					quotedQualifiedAttribute)[tokenIndex];
 	}
 
 
 	
-	@SuppressWarnings("unchecked")
+	/**
+	 * @param triple
+	 * @param tripleRelation a relation that can produce the predicate of the 
+	 * triple
+	 * @param propertyBridges memoizes the side effects
+	 * @return
+	 */
 	static ExtractValuesInfo extractValues(Triple triple, 
-		TripleRelation tripleRelation) {
+		TripleRelation tripleRelation, PropertyBridgeIndex propertyBridges) {
 		
 		log.debug("extracting values for triple " + triple + 
 				" tripleRelation = " + tripleRelation);
-		Map<Attribute,String> subjectValues = new HashMap<Attribute,String>(1);
-		Map<Attribute,String> objectValues = new HashMap<Attribute,String>(1);
 		
-		MutableRelation sideEffectsForPredicate = 
-			getSideEffects(tripleRelation, TripleRelation.PREDICATE,
-						   triple.getPredicate());
-		
-		if (sideEffectsForPredicate == null){
-			return ExtractValuesInfo.FAILED;
-		}
-		MutableRelation sideEffectsForSubject = 
-			getSideEffects(tripleRelation, TripleRelation.SUBJECT,
-						   triple.getSubject());
+		PropertyBridgeIndex.SideEffects sideEffectsForSubject = 
+			propertyBridges.getSideEffects(tripleRelation, 
+					TripleRelation.SUBJECT, triple.getSubject());
 		
 		if (sideEffectsForSubject == null){
 			return ExtractValuesInfo.FAILED;
 		}
 	
-		MutableRelation sideEffectsForObject = 
-			getSideEffects(tripleRelation, TripleRelation.OBJECT,
-						   triple.getObject());
+		PropertyBridgeIndex.SideEffects sideEffectsForObject = 
+			propertyBridges.getSideEffects(tripleRelation, 
+					TripleRelation.OBJECT, triple.getObject());
 		
 		if (sideEffectsForObject == null){
 			log.debug("sideEffectsForObject is empty");
 			return ExtractValuesInfo.FAILED;
 		}
 		
-		extractValues(sideEffectsForSubject, 
-					  tripleRelation.baseRelation().database(), 
-					  subjectValues);
-		
-		extractValues(sideEffectsForObject, 
-				  tripleRelation.baseRelation().database(), 
-				  objectValues);
+		// ExtractValuesInfo keeps immutable copies of the values
+		Map<Attribute,String> subjectValues = sideEffectsForSubject.getValues();
+		Map<Attribute,String> objectValues = sideEffectsForObject.getValues();
 		
 		Relation immutableSnapshotOfSideEffectsForSubject =
-			sideEffectsForSubject.immutableSnapshot();
+			sideEffectsForSubject.getRelation();
 		
 		return new ExtractValuesInfo(	
 				immutableSnapshotOfSideEffectsForSubject.database(),
@@ -1128,10 +1202,10 @@ public abstract class AbstractTripleUpdater {
 
 	static void extractValues(MutableRelation relation, ConnectedDB database, 
 		Map<Attribute, String> values) {
-		// Currently the extraction is done by parsing the SQL string.
+		// Currently the extraction is done by scanning the SQL string.
 		// Once D2RQ relation`s interface is changed to provide more accessor 
 		// methods to the condition of the relation, a more reasonable approach
-		// could be applied.
+		// could be applied. The results are memoized by PropertyBridgeIndex.
 		
 		Relation immutableSnapshotOfRelation = relation.immutableSnapshot();
 		String sqlString = 
@@ -1140,76 +1214,7 @@ public abstract class AbstractTripleUpdater {
 		
 		log.debug("sqlString = " + sqlString);
 		
-		Token[] tokens = getTokens(sqlString);
-		for (int tokenIndex = 0; tokenIndex < tokens.length; tokenIndex++) {
-			Token token = tokens[tokenIndex];
-			if (token != null && token.toString().equals("=")) {
-				String attributeString = 
-					getLeftPartOfEquality(tokens, tokenIndex);
-				Attribute attribute = 
-					makeAttributeFromQuotedQualifiedName(attributeString);
-				values.put(attribute, 
-						getRightPartOfEquality(tokens, tokenIndex));
-			}
-		}
-	}
-
-	private static String getRightPartOfEquality(Token[] tokens,
-		int equalityTokenIndex) {
-		String theRightPartOfTheEquality = 
-			equalityTokenIndex < tokens.length - 1 ?
-				tokens[equalityTokenIndex+1].toString() : "";
-		if (equalityTokenIndex < tokens.length-3) {
-			Token oneAfterNextToken = tokens[equalityTokenIndex + 2];
-			if (oneAfterNextToken.toString().equals(".")) {
-				theRightPartOfTheEquality = theRightPartOfTheEquality + 
-				tokens[equalityTokenIndex + 2].toString()
-				+ tokens[equalityTokenIndex + 3].toString();
-			}
-		}
-		if ((theRightPartOfTheEquality.equals("TIMESTAMP") || 
-			 theRightPartOfTheEquality.equals("DATE")) &&
-			 (equalityTokenIndex < tokens.length-2)) {
-			theRightPartOfTheEquality += tokens[equalityTokenIndex + 2];
-		}
-		return theRightPartOfTheEquality;
-		
-	}
-
-	private static String getLeftPartOfEquality(Token[] tokens,
-		int equalityTokenIndex) {
-		String theLeftPartOfTheEquality = equalityTokenIndex >= 1 ? 
-				tokens[equalityTokenIndex-1].toString() : "";
-
-		if (equalityTokenIndex >= 3) {
-			Token oneBeforePreviousToken = tokens[equalityTokenIndex-2];
-			if (oneBeforePreviousToken.toString() == ".") {
-				theLeftPartOfTheEquality = 
-					tokens[equalityTokenIndex-3].toString() + 
-				tokens[equalityTokenIndex-2].toString() + 
-				theLeftPartOfTheEquality;
-			}
-		}
-		return theLeftPartOfTheEquality;
-	}
-
-	private static Token[] getTokens(String sqlString) {
-		CCJSqlParser parser = 
-			new CCJSqlParser(new StringReader(sqlString));
-		
-		List<Token> tokensList = new ArrayList<Token>();
-		while (true){
-			Token token = parser.getNextToken();
-			if (token != null) {
-				tokensList.add(token);
-			}
-			
-			if (token == null || token.endColumn == sqlString.length()) {
-				break;
-			}
-		}
-		
-		return tokensList.toArray(new Token[0]);
+		ConditionScanner.extractEqualities(sqlString, database, values);
 	}
 
 	protected static RelationName 
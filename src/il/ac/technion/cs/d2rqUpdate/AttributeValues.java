@@ -0,0 +1,200 @@
+/*
+   Copyright 2010 Technion - Israel Institute of Technology
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package il.ac.technion.cs.d2rqUpdate;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import de.fuberlin.wiwiss.d2rq.algebra.Attribute;
+
+/**
+ * An immutable map of attributes to their values, kept in two small arrays.
+ * The maps of the values of a triple, of a row or of a statement have only
+ * a few attributes, so scanning the arrays is cheaper than hashing into a 
+ * <code>HashMap</code>, and the hash of the map is computed once, when the 
+ * map is created. The maps are put into sets and used as keys during the 
+ * whole update, so their hash must not change: all the mutators throw 
+ * <code>UnsupportedOperationException</code>.
+ * 
+ * The map equals any other map with the same mappings, and has the same 
+ * hash, as required by <code>Map</code>.
+ *
+ * @author Vadim Eisenberg <Vadim.Eisenberg@gmail.com>
+ */
+public final class AttributeValues extends AbstractMap<Attribute, String> {
+	private static final Attribute[] NO_ATTRIBUTES = new Attribute[0];
+	private static final String[] NO_VALUES = new String[0];
+	
+	public static final AttributeValues EMPTY = 
+		new AttributeValues(NO_ATTRIBUTES, NO_VALUES);
+	
+	private final Attribute[] attributes;
+	private final String[] values;
+	private final int hash;
+	private Set<Map.Entry<Attribute, String>> entrySet;
+	
+	/**
+	 * @return an immutable copy of the map, or the map itself if it is 
+	 * already immutable
+	 */
+	public static AttributeValues copyOf(Map<Attribute, String> map) {
+		if (map instanceof AttributeValues) {
+			return (AttributeValues) map;
+		}
+		if (map.isEmpty()) {
+			return EMPTY;
+		}
+		Attribute[] attributes = new Attribute[map.size()];
+		String[] values = new String[attributes.length];
+		int i = 0;
+		for (Map.Entry<Attribute, String> entry : map.entrySet()) {
+			attributes[i] = entry.getKey();
+			values[i] = entry.getValue();
+			i++;
+		}
+		return new AttributeValues(attributes, values);
+	}
+	
+	private AttributeValues(Attribute[] attributes, String[] values) {
+		this.attributes = attributes;
+		this.values = values;
+		int hash = 0;
+		for (int i = 0; i < attributes.length; i++) {
+			hash += hashCode(attributes[i]) ^ hashCode(values[i]);
+		}
+		this.hash = hash;
+	}
+	
+	private static int hashCode(Object object) {
+		return object == null ? 0 : object.hashCode();
+	}
+	
+	private int indexOf(Object attribute) {
+		for (int i = 0; i < attributes.length; i++) {
+			if (attributes[i] == attribute) {
+				return i;
+			}
+		}
+		if (attribute == null) {
+			return -1;
+		}
+		for (int i = 0; i < attributes.length; i++) {
+			if (attribute.equals(attributes[i])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public int size() {
+		return attributes.length;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return attributes.length == 0;
+	}
+
+	@Override
+	public boolean containsKey(Object attribute) {
+		return indexOf(attribute) >= 0;
+	}
+
+	@Override
+	public String get(Object attribute) {
+		int index = indexOf(attribute);
+		return index < 0 ? null : values[index];
+	}
+
+	@Override
+	public Set<Map.Entry<Attribute, String>> entrySet() {
+		if (entrySet == null) {
+			entrySet = new EntrySet();
+		}
+		return entrySet;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (obj instanceof AttributeValues) {
+			AttributeValues other = (AttributeValues) obj;
+			if (hash != other.hash || 
+					attributes.length != other.attributes.length) {
+				return false;
+			}
+			for (int i = 0; i < attributes.length; i++) {
+				int index = other.indexOf(attributes[i]);
+				if (index < 0 || !equal(values[i], other.values[index])) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return super.equals(obj);
+	}
+	
+	private static boolean equal(String value, String otherValue) {
+		return value == null ? otherValue == null : value.equals(otherValue);
+	}
+	
+	private final class EntrySet extends AbstractSet<Map.Entry<Attribute, 
+		String>> {
+		@Override
+		public int size() {
+			return attributes.length;
+		}
+
+		@Override
+		public Iterator<Map.Entry<Attribute, String>> iterator() {
+			return new Iterator<Map.Entry<Attribute, String>>() {
+				private int next = 0;
+
+				public boolean hasNext() {
+					return next < attributes.length;
+				}
+
+				public Map.Entry<Attribute, String> next() {
+					if (next >= attributes.length) {
+						throw new NoSuchElementException();
+					}
+					Map.Entry<Attribute, String> entry = 
+						new SimpleImmutableEntry<Attribute, String>(
+							attributes[next], values[next]);
+					next++;
+					return entry;
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+}
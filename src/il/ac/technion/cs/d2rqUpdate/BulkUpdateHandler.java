@@ -17,10 +17,16 @@
  
 package il.ac.technion.cs.d2rqUpdate;
 
+import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.ExecutionEngine;
+import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.UpdateConnections;
+import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.UpdateStatement;
+
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -29,6 +35,7 @@ import com.hp.hpl.jena.graph.Graph;
 import com.hp.hpl.jena.graph.GraphUtil;
 import com.hp.hpl.jena.graph.Triple;
 import com.hp.hpl.jena.graph.impl.SimpleBulkUpdateHandler;
+import com.hp.hpl.jena.util.iterator.ClosableIterator;
 
 
 /**
@@ -61,7 +68,6 @@ public class BulkUpdateHandler extends SimpleBulkUpdateHandler implements
 	 * @param triplesToDelete
 	 * @param triplesToAdd
 	 */
-	@SuppressWarnings("unchecked")
 	private void performDeleteAdd(List<Triple> triplesToDelete,
 		List<Triple> triplesToAdd) {
 		
@@ -74,8 +80,7 @@ public class BulkUpdateHandler extends SimpleBulkUpdateHandler implements
 		}
 		
 		new  TripleDeleteAddUpdater(triplesToDelete, triplesToAdd,
-				((GraphD2RQUpdate)graph).tripleRelations(),
-				((GraphD2RQUpdate)graph).getMappedAttributes()).execute();
+				(GraphD2RQUpdate)graph).execute();
 	}
 
 	/**
@@ -108,15 +113,118 @@ public class BulkUpdateHandler extends SimpleBulkUpdateHandler implements
 		manager.notifyAddGraph(graph, g);
 	}
 
-	@SuppressWarnings("unchecked")
+	/**
+	 * If d2rqu:streamWindowSize is set, adds the triples of the iterator 
+	 * window by window, instead of collecting all of them first. The windows
+	 * hold d2rqu:streamWindowSize triples, extended up to twice the size to 
+	 * keep the consecutive triples of a subject together, and each window is
+	 * added and committed before the next one is read, so the add is not 
+	 * atomic. The rows that reference rows not added yet are carried to the
+	 * next windows, and added after the last window if the referenced rows
+	 * do not come. The listeners of the graph are notified per window.
+	 */
+	@Override
+	public void addIterator(Iterator it, boolean notify) {
+		GraphD2RQUpdate graph = (GraphD2RQUpdate) this.graph;
+		int windowSize = 
+			graph.getUpdateConfiguration().getStreamWindowSize();
+		if (insideDeleteInsert || windowSize == 0) {
+			super.addIterator(it, notify);
+			return;
+		}
+		
+		UpdateConnections.begin(graph.getConnectionProvider());
+		try {
+			List<UpdateStatement> carriedStatements = 
+				Collections.emptyList();
+			List<Triple> window = new ArrayList<Triple>(windowSize);
+			while (it.hasNext()) {
+				Triple triple = (Triple) it.next();
+				if (isWindowFull(window, windowSize, triple)) {
+					carriedStatements = 
+						addWindow(window, carriedStatements, notify);
+					window = new ArrayList<Triple>(windowSize);
+				}
+				window.add(triple);
+			}
+			if (!window.isEmpty()) {
+				carriedStatements = 
+					addWindow(window, carriedStatements, notify);
+			}
+			if (!carriedStatements.isEmpty()) {
+				addCarriedStatements(carriedStatements);
+			}
+		}
+		finally {
+			UpdateConnections.end();
+			if (it instanceof ClosableIterator) {
+				((ClosableIterator) it).close();
+			}
+		}
+	}
+
+	private static boolean isWindowFull(List<Triple> window, int windowSize,
+		Triple nextTriple) {
+		if (window.size() < windowSize) {
+			return false;
+		}
+		if (window.size() >= 2 * windowSize) {
+			return true;
+		}
+		Triple lastTriple = window.get(window.size() - 1);
+		return !lastTriple.getSubject().equals(nextTriple.getSubject());
+	}
+
+	/**
+	 * Adds the triples of the window together with the statements carried
+	 * from the previous windows
+	 * 
+	 * @return the statements of the rows that reference rows not added yet,
+	 * to be carried to the next window
+	 */
+	private List<UpdateStatement> addWindow(List<Triple> window, 
+		List<UpdateStatement> carriedStatements, boolean notify) {
+		log.debug("adding a window of " + window.size() + " triples and " + 
+				carriedStatements.size() + " carried statements");
+		ExecutionEngine engine = createExecutionEngine();
+		for (UpdateStatement statement : carriedStatements) {
+			engine.add(statement);
+		}
+		new TripleAdder(window, (GraphD2RQUpdate)graph).addStatements(engine);
+		carriedStatements = engine.removeStatementsWithMissingReferences();
+		engine.execute();
+		if (notify) {
+			manager.notifyAddList(graph, window);
+		}
+		return carriedStatements;
+	}
+
+	/**
+	 * Adds the rows whose referenced rows did not come in any window, the 
+	 * database reports the missing references
+	 */
+	private void addCarriedStatements(List<UpdateStatement> statements) {
+		log.debug("adding " + statements.size() + " carried statements");
+		ExecutionEngine engine = createExecutionEngine();
+		for (UpdateStatement statement : statements) {
+			engine.add(statement);
+		}
+		engine.execute();
+	}
+
+	private ExecutionEngine createExecutionEngine() {
+		GraphD2RQUpdate graph = (GraphD2RQUpdate) this.graph;
+		return new ExecutionEngine(graph.getUpdateConfiguration(), 
+				graph.getUpdateMetrics());
+	}
+
 	protected void performAdd(List<Triple> triples) {
 		if (insideDeleteInsert) { 
 			// do not perform add - just remember the triples to add
 			triplesToAdd.addAll(triples);
 			return;
 		}
-		new TripleAdder(triples, 
-				((GraphD2RQUpdate)graph).tripleRelations()).execute();		
+		new TripleAdder(triples, (GraphD2RQUpdate)graph).execute();		
 		
 	}
 	
@@ -143,33 +251,33 @@ public class BulkUpdateHandler extends SimpleBulkUpdateHandler implements
 		manager.notifyDeleteGraph(graph, g);
 	}
 
-	@SuppressWarnings("unchecked")
 	protected void performDelete(List<Triple> triples) {
-		filterOutNonExistentTriples(triples, (GraphD2RQUpdate)graph);
+		triples = filterOutNonExistentTriples(triples, (GraphD2RQUpdate)graph);
 		if (insideDeleteInsert) { 
 			// do not perform delete - just remember the triples to delete
 			triplesToDelete.addAll(triples);
 			return;
 		}
-		new TripleDeleter(triples, 
-				((GraphD2RQUpdate)graph).tripleRelations(),
-				((GraphD2RQUpdate)graph).getMappedAttributes()).execute();		
+		new TripleDeleter(triples, (GraphD2RQUpdate)graph).execute();		
 		
 	}
 
 	/**
 	 * @param triples
 	 * @param graph
+	 * @return the existent triples, in their original order
 	 */
-	private void filterOutNonExistentTriples(List<Triple> triples,
+	private List<Triple> filterOutNonExistentTriples(List<Triple> triples,
 		GraphD2RQUpdate graph) {
-		List<Triple> existentTriples = new LinkedList<Triple>();
+		Set<Triple> existentTriples = 
+			new TripleExistenceProbe(graph).getExistentTriples(triples);
 		
+		List<Triple> result = new ArrayList<Triple>(existentTriples.size());
 		for (Triple triple : triples) {
-			if (graph.contains(triple)) {
-				existentTriples.add(triple);
+			if (existentTriples.contains(triple)) {
+				result.add(triple);
 			}
 		}
-		triples.retainAll(existentTriples);
+		return result;
 	}
 }
@@ -0,0 +1,219 @@
+/*
+   Copyright 2010 Technion - Israel Institute of Technology
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package il.ac.technion.cs.d2rqUpdate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import de.fuberlin.wiwiss.d2rq.D2RQException;
+import de.fuberlin.wiwiss.d2rq.algebra.Attribute;
+import de.fuberlin.wiwiss.d2rq.algebra.RelationName;
+import de.fuberlin.wiwiss.d2rq.sql.ConnectedDB;
+
+/**
+ * Extracts the "attribute = value" equalities from an SQL condition rendered
+ * by D2RQ, e.g. ("T"."ID" = 5 AND "T"."NAME" = 'x'). The D2RQ expressions
+ * do not expose their operands, so the rendered SQL is scanned, in a single
+ * pass and without a general SQL lexer: only the quoted identifiers, the
+ * string literals, the dots and the comparison operators are recognized.
+ *
+ * @author Vadim Eisenberg <Vadim.Eisenberg@gmail.com>
+ */
+final class ConditionScanner {
+	private static final String DOT = ".";
+	private static final String EQUALS = "=";
+
+	private final String sql;
+	// MySQL escapes by backslash, SQL-92 by doubling the quote
+	private final boolean backslashEscapes;
+	private int position = 0;
+
+	private ConditionScanner(String sql, boolean backslashEscapes) {
+		this.sql = sql;
+		this.backslashEscapes = backslashEscapes;
+	}
+
+	/**
+	 * @param sqlCondition the condition as rendered by Expression.toSQL
+	 * @param database the database the condition was rendered for
+	 * @param values receives the values of the attributes that are compared
+	 * for equality, as SQL literals (or quoted qualified attributes, for the
+	 * equalities between attributes)
+	 */
+	static void extractEqualities(String sqlCondition, ConnectedDB database,
+		Map<Attribute, String> values) {
+		List<String> tokens = new ConditionScanner(sqlCondition, 
+				database.dbTypeIs(ConnectedDB.MySQL)).tokens();
+		for (int index = 0; index < tokens.size(); index++) {
+			if (tokens.get(index) == EQUALS) {
+				values.put(getLeftPartOfEquality(tokens, index),
+						getRightPartOfEquality(tokens, index));
+			}
+		}
+	}
+
+	/**
+	 * @param quotedQualifiedAttribute an attribute in the "table"."column"
+	 * notation
+	 * @return the unquoted table name and column name
+	 */
+	static String[] splitQuotedQualifiedAttribute(
+		String quotedQualifiedAttribute) {
+		List<String> tokens =
+			new ConditionScanner(quotedQualifiedAttribute, false).tokens();
+		if (tokens.size() != 3 || tokens.get(1) != DOT) {
+			throw new D2RQException("Attribute \"" +
+					quotedQualifiedAttribute +
+					"\" is not in \"table.column\" notation",
+					D2RQException.SQL_INVALID_ATTRIBUTENAME);
+		}
+		return new String[] { unquote(tokens.get(0)), unquote(tokens.get(2)) };
+	}
+
+	private static Attribute getLeftPartOfEquality(List<String> tokens,
+		int equalityIndex) {
+		// [schema .] table . column =
+		if (equalityIndex < 3 || tokens.get(equalityIndex - 2) != DOT) {
+			throw new D2RQException("The left part of an equality is not in " +
+					"\"table.column\" notation: " + tokens,
+					D2RQException.SQL_INVALID_ATTRIBUTENAME);
+		}
+		String column = unquote(tokens.get(equalityIndex - 1));
+		String table = unquote(tokens.get(equalityIndex - 3));
+		String schema = null;
+		if (equalityIndex >= 5 && tokens.get(equalityIndex - 4) == DOT) {
+			schema = unquote(tokens.get(equalityIndex - 5));
+		}
+		return new Attribute(new RelationName(schema, table), column);
+	}
+
+	private static String getRightPartOfEquality(List<String> tokens,
+		int equalityIndex) {
+		if (equalityIndex + 1 >= tokens.size()) {
+			return "";
+		}
+		String result = tokens.get(equalityIndex + 1);
+		if (equalityIndex + 3 < tokens.size() &&
+				tokens.get(equalityIndex + 2) == DOT) {
+			// another attribute
+			return result + DOT + tokens.get(equalityIndex + 3);
+		}
+		if ((result.equals("TIMESTAMP") || result.equals("DATE")) &&
+				equalityIndex + 2 < tokens.size()) {
+			// a typed literal
+			return result + tokens.get(equalityIndex + 2);
+		}
+		return result;
+	}
+
+	private static String unquote(String identifier) {
+		char first = identifier.charAt(0);
+		if (identifier.length() > 1 && (first == '"' || first == '`')) {
+			return identifier.substring(1, identifier.length() - 1);
+		}
+		return identifier;
+	}
+
+	/**
+	 * @return the tokens, the dots and the equality signs are returned as the
+	 * DOT and EQUALS constants, so they can be compared by identity
+	 */
+	private List<String> tokens() {
+		List<String> tokens = new ArrayList<String>();
+		while (position < sql.length()) {
+			char character = sql.charAt(position);
+			if (Character.isWhitespace(character) || character == '(' ||
+					character == ')' || character == ',') {
+				position++;
+			} else if (character == '.') {
+				tokens.add(DOT);
+				position++;
+			} else if (character == '\'' || character == '"' ||
+					character == '`') {
+				tokens.add(quoted(character));
+			} else if (isOperator(character)) {
+				tokens.add(operator());
+			} else if (character == '-' && !tokens.isEmpty() &&
+					tokens.get(tokens.size() - 1) == EQUALS) {
+				// a negative number
+				position++;
+				tokens.add("-" + word());
+			} else {
+				tokens.add(word());
+			}
+		}
+		return tokens;
+	}
+
+	private String quoted(char quote) {
+		int start = position++;
+		while (position < sql.length()) {
+			char character = sql.charAt(position++);
+			if (character == '\\' && quote == '\'' && backslashEscapes) {
+				position++;
+			} else if (character == quote) {
+				if (position < sql.length() && sql.charAt(position) == quote) {
+					// a doubled quote
+					position++;
+				} else {
+					break;
+				}
+			}
+		}
+		return sql.substring(start, Math.min(position, sql.length()));
+	}
+
+	private String operator() {
+		int start = position;
+		while (position < sql.length() && isOperator(sql.charAt(position))) {
+			position++;
+		}
+		String operator = sql.substring(start, position);
+		return operator.equals(EQUALS) ? EQUALS : operator;
+	}
+
+	private String word() {
+		int start = position;
+		while (position < sql.length()) {
+			char character = sql.charAt(position);
+			if (Character.isWhitespace(character) || character == '(' ||
+					character == ')' || character == ',' ||
+					character == '.' && !isDigit(start) ||
+					character == '\'' || character == '"' ||
+					character == '`' || isOperator(character)) {
+				break;
+			}
+			position++;
+		}
+		if (position == start) {
+			// an unexpected character, skip it
+			position++;
+			return sql.substring(start, position);
+		}
+		return sql.substring(start, position);
+	}
+
+	private boolean isDigit(int index) {
+		return Character.isDigit(sql.charAt(index));
+	}
+
+	private static boolean isOperator(char character) {
+		return character == '=' || character == '<' || character == '>' ||
+			character == '!';
+	}
+}
@@ -16,6 +16,10 @@
  */
 package il.ac.technion.cs.d2rqUpdate;
 
+import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.ConnectionProvider;
+import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.SharedConnectionProvider;
+import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.UpdateConnections;
+
 import com.hp.hpl.jena.graph.Graph;
 import com.hp.hpl.jena.graph.Node;
 import com.hp.hpl.jena.query.Dataset;
@@ -34,25 +38,53 @@ import de.fuberlin.wiwiss.d2rq.engine.D2RQDatasetGraph;
 public class D2RQUpdateDatasetGraph extends D2RQDatasetGraph 
 	implements GraphStore {
 
+	private final GraphD2RQ graph;
+
 	/**
 	 * @param graph
 	 */
 	public D2RQUpdateDatasetGraph(GraphD2RQ graph) {
 		super(graph);
+		this.graph = graph;
 	}
 
 	/* (non-Javadoc)
 	 * @see com.hp.hpl.jena.update.GraphStore#finishRequest()
+	 * 
+	 * Commits the request, or rolls it back if one of its operations failed
 	 */
 	@Override
 	public void finishRequest() {	
+		UpdateConnections.end();
 	}
 
 	/* (non-Javadoc)
 	 * @see com.hp.hpl.jena.update.GraphStore#startRequest()
+	 * 
+	 * All the operations of the request are executed on the same 
+	 * connections, checked out until finishRequest(). The request is 
+	 * executed in a single transaction, committed by finishRequest(), when
+	 * its updates are executed on the connection of the mapping, where the 
+	 * queries of its operations see the preceding updates, and 
+	 * d2rqu:commitEveryBatch does not ask for several transactions.
 	 */
 	@Override
 	public void startRequest() {
+		if (graph instanceof GraphD2RQUpdate) {
+			GraphD2RQUpdate graphD2RQUpdate = (GraphD2RQUpdate) graph;
+			ConnectionProvider provider = 
+				graphD2RQUpdate.getConnectionProvider();
+			UpdateConfiguration configuration = 
+				graphD2RQUpdate.getUpdateConfiguration();
+			if (provider instanceof SharedConnectionProvider &&
+				!configuration.getCommitEveryBatch()) {
+				UpdateConnections.beginTransaction(provider);
+			} else {
+				UpdateConnections.begin(provider);
+			}
+		} else {
+			UpdateConnections.begin(new SharedConnectionProvider());
+		}
 	}
 
 	/* (non-Javadoc)
@@ -16,6 +16,9 @@
 
 package il.ac.technion.cs.d2rqUpdate;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import de.fuberlin.wiwiss.d2rq.algebra.Attribute;
@@ -24,29 +27,113 @@ import de.fuberlin.wiwiss.d2rq.sql.ConnectedDB;
 
 /**
  * Builds DELETE SQL statement for a given relation, database and condition
- * values
+ * values. The rows of several conditions on the same columns can be deleted
+ * by a single statement: 
+ * 
+ * <pre>
+ * DELETE FROM t WHERE t.id IN (1, 2, 3)
+ * DELETE FROM t WHERE (t.id, t.name) IN ((1, 'x'), (2, 'y'))
+ * DELETE FROM t WHERE (t.id = 1 AND t.name = 'x') OR (t.id = 2 AND ...)
+ * </pre>
+ * 
+ * The row value IN is used on MySQL and PostgreSQL, a disjunction of the 
+ * conditions on the other databases, and for the conditions with NULLs.
  * 
  * @author Vadim Eisenberg <Vadim.Eisenberg@gmail.com>
  */
 public class DeleteStatementBuilder extends StatementBuilder {
-	private final Map<Attribute, String> conditionValues;
+	private final List<Attribute> columns;
+	private final List<Map<Attribute, String>> conditions;
 
 	public DeleteStatementBuilder(RelationName table,
 			ConnectedDB database, Map<Attribute, String> conditionValues) {
+		this(table, database, new ArrayList<Attribute>(
+				conditionValues.keySet()), 
+				Collections.singletonList(conditionValues));
+	}
+	
+	/**
+	 * @param columns the columns of the conditions
+	 * @param conditions the condition values of the deleted rows, each 
+	 * condition has a value for each column
+	 */
+	public DeleteStatementBuilder(RelationName table,
+			ConnectedDB database, List<Attribute> columns,
+			List<Map<Attribute, String>> conditions) {
 		super(table, database);
-		this.conditionValues = conditionValues;
+		this.columns = columns;
+		this.conditions = conditions;
 	}
 	
 	@Override
-	public String getSQLStatement() {
-		StringBuffer result = new StringBuffer("DELETE ");
+	protected String buildSQLStatement() {
+		StringBuilder result = 
+			createBuffer(columns.size() * (conditions.size() + 1));
+		result.append("DELETE ");
 		
 		result.append(" FROM ");
 		result.append(quoteRelationName(getTable()));
 
 		result.append(" WHERE ");
-		appendSeparatedEqualities(result, conditionValues, "AND", true);
+		if (conditions.size() == 1) {
+			appendSeparatedEqualities(result, conditions.get(0), "AND", true);
+		} else if (containsNULL() || columns.size() > 1 && 
+				!supportsRowValueIN()) {
+			Separator separator = new Separator("OR");
+			for (Map<Attribute, String> condition : conditions) {
+				result.append(separator).append("(");
+				appendSeparatedEqualities(result, condition, "AND", true);
+				result.append(") ");
+			}
+		} else {
+			appendRowValueIN(result);
+		}
 
 		return result.toString();
 	}
+
+	private void appendRowValueIN(StringBuilder result) {
+		appendTuple(result, null);
+		result.append(" IN (");
+		Separator separator = new Separator(",");
+		for (Map<Attribute, String> condition : conditions) {
+			result.append(separator);
+			appendTuple(result, condition);
+		}
+		result.append(")");
+	}
+
+	/**
+	 * Appends the columns, or their values in the condition, in parentheses
+	 * if there are several columns
+	 */
+	private void appendTuple(StringBuilder result, 
+		Map<Attribute, String> condition) {
+		if (columns.size() > 1) {
+			result.append("(");
+		}
+		Separator separator = new Separator(",");
+		for (Attribute column : columns) {
+			result.append(separator).append(condition == null ? 
+					toSQL(column, getDatabase(), true) : 
+					valueToSQL(condition.get(column)));
+		}
+		if (columns.size() > 1) {
+			result.append(")");
+		}
+	}
+
+	private boolean containsNULL() {
+		for (Map<Attribute, String> condition : conditions) {
+			if (condition.containsValue("NULL")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean supportsRowValueIN() {
+		return getDatabase().dbTypeIs(ConnectedDB.MySQL) || 
+			getDatabase().dbTypeIs(ConnectedDB.PostgreSQL);
+	}
 }
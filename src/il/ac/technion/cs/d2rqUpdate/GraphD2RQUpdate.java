@@ -17,11 +17,14 @@
 package il.ac.technion.cs.d2rqUpdate;
  
 
+import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.ConnectionProvider;
 import il.ac.technion.cs.d2rqUpdate.UpdateProcessor.UpdateProcessor;
 
+import java.lang.management.ManagementFactory;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -61,18 +64,87 @@ public class GraphD2RQUpdate extends GraphD2RQ {
 		UpdateProcessorRegistry.get().add(UpdateProcessor.getFactory());
 	}
 	
+	// distinguishes the MBeans of the graphs
+	private static final AtomicInteger numberOfGraphs = new AtomicInteger();
+	
 	private final Capabilities capabilities = new D2RQUpdateCapabilities();
 	private Set<Attribute> mappedAttributes = Collections.emptySet();
+	private final UpdateConfiguration updateConfiguration;
+	private final PropertyBridgeIndex propertyBridgeIndex;
+	private ConnectionProvider connectionProvider;
+	// the provider created from the update configuration, closed with the
+	// graph
+	private final ConnectionProvider configuredConnectionProvider;
+	private final UpdateMetrics updateMetrics = new UpdateMetrics();
 
 	Set<Attribute> getMappedAttributes() {
 		return mappedAttributes;
 	}
 
+	public UpdateConfiguration getUpdateConfiguration() {
+		return updateConfiguration;
+	}
+
+	/**
+	 * @return the durations of the phases of the updates, registered as 
+	 * MBeans in the platform MBean server until the graph is closed, if 
+	 * d2rqu:jmxMetrics is set
+	 */
+	public UpdateMetrics getUpdateMetrics() {
+		return updateMetrics;
+	}
+
+	PropertyBridgeIndex getPropertyBridgeIndex() {
+		return propertyBridgeIndex;
+	}
+
+	/**
+	 * @return the provider of the connections the updates are executed on
+	 */
+	public synchronized ConnectionProvider getConnectionProvider() {
+		return connectionProvider;
+	}
+
+	/**
+	 * @param connectionProvider replaces the provider created from the 
+	 * update configuration, for the updates that start afterwards. The 
+	 * provider is not closed by the graph
+	 */
+	public synchronized void setConnectionProvider(
+		ConnectionProvider connectionProvider) {
+		this.connectionProvider = connectionProvider;
+	}
+
 	public GraphD2RQUpdate(Model mapModel, String baseURIForData)
 			throws D2RQException {
+		this(mapModel, baseURIForData, new UpdateConfiguration(mapModel));
+	}
+
+	/**
+	 * @param updateConfiguration the settings of D2RQ/Update, instead of the 
+	 * settings of the mapping
+	 */
+	public GraphD2RQUpdate(Model mapModel, String baseURIForData,
+		UpdateConfiguration updateConfiguration) throws D2RQException {
 		super(mapModel, baseURIForData);
 		bulkHandler = new BulkUpdateHandler(this);
 		mappedAttributes = getAllMappedAttributes(mapModel);
+		this.updateConfiguration = updateConfiguration;
+		propertyBridgeIndex = createPropertyBridgeIndex();
+		configuredConnectionProvider = 
+			updateConfiguration.createConnectionProvider();
+		connectionProvider = configuredConnectionProvider;
+		// the MBean server keeps the graph reachable until it is closed
+		if (updateConfiguration.getJmxMetrics()) {
+			updateMetrics.register(
+					ManagementFactory.getPlatformMBeanServer(),
+					String.valueOf(numberOfGraphs.incrementAndGet()));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private PropertyBridgeIndex createPropertyBridgeIndex() {
+		return new PropertyBridgeIndex(tripleRelations());
 	}
 
 
@@ -147,22 +219,18 @@ public class GraphD2RQUpdate extends GraphD2RQ {
 	}
 	
 	@Override
-	@SuppressWarnings("unchecked")
 	public void performAdd(Triple triple) {
 		log.debug("adding triple: " + triple.getSubject() + " "
 				+ triple.getPredicate() + " " + triple.getObject());
-		new TripleAdder(Collections.singleton(triple), 
-				tripleRelations()).execute();
+		new TripleAdder(Collections.singleton(triple), this).execute();
 
 	}
 	
 	@Override
-	@SuppressWarnings("unchecked")
 	public void performDelete(Triple triple) {
 		log.debug("deleting triple: " + triple.getSubject() + " "
 				+ triple.getPredicate() + " " + triple.getObject());
-		new TripleDeleter(Collections.singleton(triple), 
-				tripleRelations(),getMappedAttributes()).execute();
+		new TripleDeleter(Collections.singleton(triple), this).execute();
 
 	}
 	
@@ -170,4 +238,17 @@ public class GraphD2RQUpdate extends GraphD2RQ {
 	public Capabilities getCapabilities() { 
 		return this.capabilities;
 	}
+	
+	/**
+	 * Closes the connections of the provider created from the update 
+	 * configuration and unregisters the MBeans of the metrics as well. A 
+	 * graph must be closed, otherwise its connections and its MBeans are 
+	 * left behind
+	 */
+	@Override
+	public void close() {
+		updateMetrics.unregister();
+		configuredConnectionProvider.close();
+		super.close();
+	}
 }
@@ -16,50 +16,65 @@
 
 package il.ac.technion.cs.d2rqUpdate;
  
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import de.fuberlin.wiwiss.d2rq.algebra.Attribute;
 import de.fuberlin.wiwiss.d2rq.algebra.RelationName;
 import de.fuberlin.wiwiss.d2rq.sql.ConnectedDB;
 
 /**
- * Builds INSERT SQL statement for a given relation, database and values
+ * Builds INSERT SQL statement for a given relation, database and values. 
+ * Several rows with the same columns can be inserted by a single statement.
  * 
  * @author Vadim Eisenberg <Vadim.Eisenberg@gmail.com>
  */
 public class InsertStatementBuilder extends StatementBuilder {
 
-	private final Map<Attribute, String> values;
+	private final List<Attribute> columns;
+	private final List<Map<Attribute, String>> rows;
 
 	public InsertStatementBuilder(RelationName table,
 			ConnectedDB database, Map<Attribute, String> values) {
+		this(table, database, new ArrayList<Attribute>(values.keySet()),
+				Collections.singletonList(values));
+	}
+	
+	/**
+	 * @param columns the inserted columns
+	 * @param rows the values of the rows, each row has a value for each 
+	 * column
+	 */
+	public InsertStatementBuilder(RelationName table,
+			ConnectedDB database, List<Attribute> columns, 
+			List<Map<Attribute, String>> rows) {
 		super(table, database);
-		this.values = values;
+		this.columns = columns;
+		this.rows = rows;
 	}
 	
 	@Override
-	public String getSQLStatement() {
-		StringBuffer result = new StringBuffer("INSERT");
+	protected String buildSQLStatement() {
+		StringBuilder result = createBuffer(columns.size() * (rows.size() + 1));
+		result.append("INSERT");
 		
 		result.append(" INTO  ");
 		result.append(quoteRelationName(getTable()));
 		
-		Set<Attribute> columns = values.keySet();
-
-		result.append(" (");
-		Separator separator = new Separator(",");
-		for (Attribute column : columns) {
-			result.append(separator + toSQL(column,getDatabase(),false));
-		}
-		result.append(")");
+		result.append(" (").append(columnList(columns)).append(")");
 
-		separator = new Separator(",");
-		result.append(" VALUES(");
-		for (Attribute column : columns) {
-			result.append(separator + values.get(column));
+		Separator rowSeparator = new Separator(",");
+		result.append(" VALUES");
+		for (Map<Attribute, String> values : rows) {
+			result.append(rowSeparator).append("(");
+			Separator separator = new Separator(",");
+			for (Attribute column : columns) {
+				result.append(separator).append(valueToSQL(values.get(column)));
+			}
+			result.append(")");
 		}
-		result.append(")");
 
 		return result.toString();
 	}
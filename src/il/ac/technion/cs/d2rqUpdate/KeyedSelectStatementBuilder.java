@@ -0,0 +1,128 @@
+/*
+   Copyright 2010 Technion - Israel Institute of Technology
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package il.ac.technion.cs.d2rqUpdate;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import de.fuberlin.wiwiss.d2rq.algebra.Attribute;
+import de.fuberlin.wiwiss.d2rq.algebra.RelationName;
+import de.fuberlin.wiwiss.d2rq.sql.ConnectedDB;
+
+/**
+ * Builds a query that looks up the rows of many keys of a relation at once.
+ * Each key is a map from key columns to their values. The first column of
+ * the result is the index of the key that the row matches, followed by the
+ * selected columns:
+ *
+ * <pre>
+ * SELECT CASE WHEN t.id = 1 THEN 0 WHEN t.id = 2 THEN 1 END, t.name
+ * FROM t WHERE t.id IN (1, 2)
+ * </pre>
+ *
+ * Keys with several columns are matched by a disjunction of conjunctions
+ * instead of IN.
+ *
+ * @author Vadim Eisenberg <Vadim.Eisenberg@gmail.com>
+ */
+public class KeyedSelectStatementBuilder extends StatementBuilder {
+	private final List<Map<Attribute, String>> keys;
+	private final List<Attribute> selectColumns;
+
+	/**
+	 * @param keys
+	 */
+	public KeyedSelectStatementBuilder(RelationName table,
+		ConnectedDB database, List<Map<Attribute, String>> keys) {
+		this(table, database, keys, Collections.<Attribute>emptyList());
+	}
+
+	/**
+	 * @param keys
+	 * @param selectColumns the columns selected after the index of the key
+	 */
+	public KeyedSelectStatementBuilder(RelationName table,
+		ConnectedDB database, List<Map<Attribute, String>> keys,
+		List<Attribute> selectColumns) {
+		super(table, database);
+		this.keys = keys;
+		this.selectColumns = selectColumns;
+	}
+
+	@Override
+	protected String buildSQLStatement() {
+		StringBuilder result = 
+			createBuffer(2 * keys.size() + selectColumns.size());
+		result.append("SELECT CASE ");
+
+		for (int index = 0; index < keys.size(); index++) {
+			result.append("WHEN ");
+			appendSeparatedEqualities(result, keys.get(index), "AND", true);
+			result.append("THEN ").append(index).append(' ');
+		}
+		result.append("END");
+
+		for (Attribute column : selectColumns) {
+			result.append(", ").append(toSQL(column, getDatabase(), true));
+		}
+
+		result.append(" FROM ");
+		result.append(quoteRelationName(getTable()));
+		result.append(" WHERE ");
+
+		Attribute keyColumn = getSingleKeyColumn();
+		if (keyColumn != null) {
+			result.append(toSQL(keyColumn, getDatabase(), true))
+				.append(" IN (");
+			Separator separator = new Separator(",");
+			for (Map<Attribute, String> key : keys) {
+				result.append(separator).append(valueToSQL(key.get(keyColumn)));
+			}
+			result.append(")");
+			return result.toString();
+		}
+
+		Separator separator = new Separator("OR");
+		for (Map<Attribute, String> key : keys) {
+			result.append(separator).append("(");
+			appendSeparatedEqualities(result, key, "AND", true);
+			result.append(") ");
+		}
+		return result.toString();
+	}
+
+	/**
+	 * @return the column of the keys, if all of them consist of the same
+	 * single column and none is NULL, null otherwise
+	 */
+	private Attribute getSingleKeyColumn() {
+		Attribute keyColumn = null;
+		for (Map<Attribute, String> key : keys) {
+			// NULL does not match in an IN list
+			if (key.size() != 1 || key.containsValue("NULL")) {
+				return null;
+			}
+			Attribute column = key.keySet().iterator().next();
+			if (keyColumn != null && !keyColumn.equals(column)) {
+				return null;
+			}
+			keyColumn = column;
+		}
+		return keyColumn;
+	}
+}
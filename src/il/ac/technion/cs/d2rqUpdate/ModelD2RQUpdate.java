@@ -86,4 +86,19 @@ public class ModelD2RQUpdate extends ModelCom implements Model {
 		// BuiltinPersonalities.model really required?
 				BuiltinPersonalities.model);
 	}
+
+	/** 
+	 * Create a non-RDF database-based model. The model is created
+	 * from a D2RQ map that is provided as a Jena model.
+	 * @param mapModel a Jena model containing the D2RQ map
+	 * @param baseURIForData Base URI for turning relative URI patterns into
+	 * 		absolute URIs; if <tt>null</tt>, then D2RQ will pick a base URI
+	 * @param updateConfiguration the settings of D2RQ/Update, instead of the
+	 * 		settings of the map
+	 */
+	public ModelD2RQUpdate(Model mapModel, String baseURIForData,
+			UpdateConfiguration updateConfiguration) {
+		super(new GraphD2RQUpdate(mapModel, baseURIForData, 
+				updateConfiguration), BuiltinPersonalities.model);
+	}
 }
\ No newline at end of file
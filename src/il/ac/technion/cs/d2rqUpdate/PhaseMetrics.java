@@ -0,0 +1,113 @@
+/*
+   Copyright 2010 Technion - Israel Institute of Technology
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package il.ac.technion.cs.d2rqUpdate;
+
+import java.util.Arrays;
+
+/**
+ * The number and the durations of the executions of a phase of the 
+ * updates, with a histogram of the durations. The bucket i of the histogram
+ * counts the durations shorter than 2^i microseconds, so the percentiles are
+ * estimated up to a factor of 2.
+ *
+ * @author Vadim Eisenberg <Vadim.Eisenberg@gmail.com>
+ */
+public class PhaseMetrics implements PhaseMetricsMBean {
+	private static final int NUMBER_OF_BUCKETS = 32;
+	private static final double NANOSECONDS_PER_MILLISECOND = 1000000.0;
+
+	private long count = 0;
+	private long totalTime = 0;
+	private long maximalTime = 0;
+	private final long[] histogram = new long[NUMBER_OF_BUCKETS];
+
+	/**
+	 * @param duration in nanoseconds
+	 */
+	public synchronized void record(long duration) {
+		count++;
+		totalTime += duration;
+		maximalTime = Math.max(maximalTime, duration);
+		long microseconds = duration / 1000;
+		int bucket = 64 - Long.numberOfLeadingZeros(microseconds);
+		histogram[Math.min(bucket, NUMBER_OF_BUCKETS - 1)]++;
+	}
+
+	public synchronized long getCount() {
+		return count;
+	}
+
+	public synchronized double getTotalTime() {
+		return totalTime / NANOSECONDS_PER_MILLISECOND;
+	}
+
+	public synchronized double getMeanTime() {
+		return count == 0 ? 0 : totalTime / NANOSECONDS_PER_MILLISECOND / count;
+	}
+
+	public synchronized double getMaximalTime() {
+		return maximalTime / NANOSECONDS_PER_MILLISECOND;
+	}
+
+	public double getMedianTime() {
+		return getPercentileTime(0.5);
+	}
+
+	public double get99thPercentileTime() {
+		return getPercentileTime(0.99);
+	}
+
+	/**
+	 * @param fraction between 0 and 1
+	 * @return the upper bound of the bucket of the percentile, in 
+	 * milliseconds, 0 if nothing was recorded
+	 */
+	public synchronized double getPercentileTime(double fraction) {
+		long rank = (long) Math.ceil(fraction * count);
+		long seen = 0;
+		for (int bucket = 0; bucket < NUMBER_OF_BUCKETS; bucket++) {
+			seen += histogram[bucket];
+			if (seen >= rank && seen > 0) {
+				return Math.min(getBound(bucket), getMaximalTime());
+			}
+		}
+		return 0;
+	}
+
+	public double[] getHistogramBounds() {
+		double[] bounds = new double[NUMBER_OF_BUCKETS];
+		for (int bucket = 0; bucket < NUMBER_OF_BUCKETS; bucket++) {
+			bounds[bucket] = getBound(bucket);
+		}
+		return bounds;
+	}
+
+	public synchronized long[] getHistogram() {
+		return histogram.clone();
+	}
+
+	public synchronized void reset() {
+		count = 0;
+		totalTime = 0;
+		maximalTime = 0;
+		Arrays.fill(histogram, 0);
+	}
+
+	private static double getBound(int bucket) {
+		return (1L << bucket) / 1000.0;
+	}
+}
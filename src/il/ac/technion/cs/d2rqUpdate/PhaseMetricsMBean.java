@@ -0,0 +1,54 @@
+/*
+   Copyright 2010 Technion - Israel Institute of Technology
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package il.ac.technion.cs.d2rqUpdate;
+
+/**
+ * The JMX view of PhaseMetrics. The times are in milliseconds.
+ *
+ * @author Vadim Eisenberg <Vadim.Eisenberg@gmail.com>
+ */
+public interface PhaseMetricsMBean {
+	long getCount();
+
+	double getTotalTime();
+
+	double getMeanTime();
+
+	double getMaximalTime();
+
+	/**
+	 * @return the upper bound of the histogram bucket of the median
+	 */
+	double getMedianTime();
+
+	/**
+	 * @return the upper bound of the histogram bucket of the 99th percentile
+	 */
+	double get99thPercentileTime();
+
+	/**
+	 * @return the upper bounds of the buckets of the histogram
+	 */
+	double[] getHistogramBounds();
+
+	/**
+	 * @return the number of the executions per bucket of the histogram
+	 */
+	long[] getHistogram();
+
+	void reset();
+}
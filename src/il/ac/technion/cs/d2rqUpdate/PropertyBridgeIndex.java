@@ -0,0 +1,235 @@
+/*
+   Copyright 2010 Technion - Israel Institute of Technology
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package il.ac.technion.cs.d2rqUpdate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.hp.hpl.jena.graph.Node;
+
+import de.fuberlin.wiwiss.d2rq.algebra.AliasMap;
+import de.fuberlin.wiwiss.d2rq.algebra.Attribute;
+import de.fuberlin.wiwiss.d2rq.algebra.Join;
+import de.fuberlin.wiwiss.d2rq.algebra.MutableRelation;
+import de.fuberlin.wiwiss.d2rq.algebra.Relation;
+import de.fuberlin.wiwiss.d2rq.algebra.TripleRelation;
+
+/**
+ * Indexes the property bridges (triple relations) of a mapping by the
+ * predicates they can produce, so that the values of a triple are extracted
+ * only by the bridges that can match its predicate. The bridges matching a
+ * predicate are found once, by the predicate node makers of all the
+ * bridges; this covers both the bridges with a constant d2rq:property and
+ * the bridges that produce any predicate, such as d2rq:dynamicProperty.
+ * 
+ * The index also memoizes the side effects of selecting a node by a triple 
+ * relation, together with the attribute values extracted from them, so a 
+ * subject or an object that appears in many triples is handled once.
+ * 
+ * The update plans of the bridges, their join equivalence classes and 
+ * aliases, are compiled when the index is created, with the mapping.
+ *
+ * @author Vadim Eisenberg <Vadim.Eisenberg@gmail.com>
+ */
+public class PropertyBridgeIndex {
+	static private Log log = LogFactory.getLog(PropertyBridgeIndex.class);
+
+	/**
+	 * The side effects of selecting a node by a triple relation, and the 
+	 * values of the attributes they constrain 
+	 */
+	static final class SideEffects {
+		private final Relation relation;
+		private final Map<Attribute, String> values;
+		
+		SideEffects(Relation relation, Map<Attribute, String> values) {
+			this.relation = relation;
+			this.values = Collections.unmodifiableMap(values);
+		}
+		
+		Relation getRelation() {
+			return relation;
+		}
+		
+		/**
+		 * @return the values, unmodifiable since the side effects are shared
+		 */
+		Map<Attribute, String> getValues() {
+			return values;
+		}
+	}
+	
+	private static final SideEffects NO_SIDE_EFFECTS = 
+		new SideEffects(null, Collections.<Attribute, String>emptyMap());
+	
+	// bounds the index for mappings with dynamic properties
+	private static final int MAXIMAL_NUMBER_OF_PREDICATES = 10000;
+	private static final int MAXIMAL_NUMBER_OF_SIDE_EFFECTS = 10000;
+
+	private final Collection<TripleRelation> tripleRelations;
+
+	private final Map<Node, List<TripleRelation>> candidatesPerPredicate =
+		new LinkedHashMap<Node, List<TripleRelation>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+				Map.Entry<Node, List<TripleRelation>> eldest) {
+				return size() > MAXIMAL_NUMBER_OF_PREDICATES;
+			}
+		};
+
+	private final Map<List<Object>, SideEffects> sideEffects =
+		new LinkedHashMap<List<Object>, SideEffects>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+				Map.Entry<List<Object>, SideEffects> eldest) {
+				return size() > MAXIMAL_NUMBER_OF_SIDE_EFFECTS;
+			}
+		};
+
+	// keyed by the joins and the aliases of the bridges
+	private final Map<List<Object>, UpdatePlan> plans = 
+		new HashMap<List<Object>, UpdatePlan>();
+
+	public PropertyBridgeIndex(Collection<TripleRelation> tripleRelations) {
+		this.tripleRelations = tripleRelations;
+		for (TripleRelation tripleRelation : tripleRelations) {
+			Relation baseRelation = tripleRelation.baseRelation();
+			getPlan(getJoins(baseRelation), baseRelation.aliases(), 
+					getAttributes(baseRelation));
+		}
+		log.debug(plans.size() + " update plans for " + 
+				tripleRelations.size() + " triple relations");
+	}
+
+	/**
+	 * @return all the triple relations of the mapping
+	 */
+	public Collection<TripleRelation> getTripleRelations() {
+		return tripleRelations;
+	}
+
+	/**
+	 * @param predicate a concrete predicate of a triple
+	 * @return the triple relations that can produce the predicate, in the
+	 * order of the mapping
+	 */
+	public synchronized List<TripleRelation> getCandidates(Node predicate) {
+		List<TripleRelation> candidates =
+			candidatesPerPredicate.get(predicate);
+		if (candidates == null) {
+			candidates = findCandidates(predicate);
+			candidatesPerPredicate.put(predicate, candidates);
+		}
+		return candidates;
+	}
+
+	/**
+	 * @param tripleRelation
+	 * @param partOfATriple TripleRelation.SUBJECT or TripleRelation.OBJECT
+	 * @param nodeOfATriple
+	 * @return the side effects of selecting the node, null if the triple
+	 * relation cannot produce the node
+	 */
+	synchronized SideEffects getSideEffects(TripleRelation tripleRelation,
+		String partOfATriple, Node nodeOfATriple) {
+		List<Object> key = 
+			Arrays.<Object>asList(tripleRelation, partOfATriple, nodeOfATriple);
+		SideEffects result = sideEffects.get(key);
+		if (result == null) {
+			result = computeSideEffects(tripleRelation, partOfATriple, 
+					nodeOfATriple);
+			sideEffects.put(key, result);
+		}
+		return result == NO_SIDE_EFFECTS ? null : result;
+	}
+
+	/**
+	 * @param info the values extracted by a property bridge
+	 * @return the update plan of the joins and the aliases of the bridge
+	 */
+	UpdatePlan getPlan(AbstractTripleUpdater.ExtractValuesInfo info) {
+		return getPlan(info.getJoins(), info.getAliases(), 
+				info.getProjections());
+	}
+
+	private synchronized UpdatePlan getPlan(Set<Join> joins, 
+		AliasMap aliases, Collection<Attribute> attributes) {
+		List<Object> key = Arrays.<Object>asList(joins, aliases);
+		UpdatePlan plan = plans.get(key);
+		if (plan == null) {
+			plan = new UpdatePlan(joins, aliases, attributes);
+			plans.put(key, plan);
+		}
+		return plan;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Set<Join> getJoins(Relation relation) {
+		return relation.joinConditions();
+	}
+
+	private static Set<Attribute> getAttributes(Relation relation) {
+		Set<Attribute> attributes = new HashSet<Attribute>();
+		for (Object projection : relation.projections()) {
+			if (projection instanceof Attribute) {
+				attributes.add((Attribute) projection);
+			}
+		}
+		return attributes;
+	}
+
+	private SideEffects computeSideEffects(TripleRelation tripleRelation,
+		String partOfATriple, Node nodeOfATriple) {
+		MutableRelation relation = AbstractTripleUpdater.getSideEffects(
+				tripleRelation, partOfATriple, nodeOfATriple);
+		if (relation == null) {
+			return NO_SIDE_EFFECTS;
+		}
+		Map<Attribute, String> values = new HashMap<Attribute, String>(1);
+		AbstractTripleUpdater.extractValues(relation, 
+				tripleRelation.baseRelation().database(), values);
+		return new SideEffects(relation.immutableSnapshot(), values);
+	}
+
+	private List<TripleRelation> findCandidates(Node predicate) {
+		List<TripleRelation> candidates = new ArrayList<TripleRelation>();
+		for (TripleRelation tripleRelation : tripleRelations) {
+			if (AbstractTripleUpdater.getSideEffects(tripleRelation,
+					TripleRelation.PREDICATE, predicate) != null) {
+				candidates.add(tripleRelation);
+			}
+		}
+		log.debug(candidates.size() + " of " + tripleRelations.size() +
+				" triple relations can produce " + predicate);
+		return Collections.unmodifiableList(candidates);
+	}
+}
@@ -0,0 +1,123 @@
+/*
+   Copyright 2010 Technion - Israel Institute of Technology
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package il.ac.technion.cs.d2rqUpdate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import de.fuberlin.wiwiss.d2rq.algebra.AliasMap;
+import de.fuberlin.wiwiss.d2rq.algebra.Attribute;
+import de.fuberlin.wiwiss.d2rq.algebra.RelationName;
+import de.fuberlin.wiwiss.d2rq.sql.ConnectedDB;
+
+/**
+ * Caches the quoted identifiers of a database: the tables, the qualified 
+ * and the unqualified columns, and the comma separated lists of the columns
+ * inserted together. The statement builders quote the same few identifiers
+ * in every statement, so each of them is quoted once per database.
+ *
+ * @author Vadim Eisenberg <Vadim.Eisenberg@gmail.com>
+ */
+final class QuotedIdentifiers {
+	// the lists are keyed by the sets of columns that appear in the 
+	// statements, the limit only guards against unexpected mappings
+	private static final int MAXIMAL_NUMBER_OF_COLUMN_LISTS = 1000;
+	
+	private static final Map<ConnectedDB, QuotedIdentifiers> caches =
+		new WeakHashMap<ConnectedDB, QuotedIdentifiers>();
+
+	private final ConnectedDB database;
+
+	private final Map<RelationName, String> tables =
+		new HashMap<RelationName, String>();
+	private final Map<Attribute, String> qualifiedColumns =
+		new HashMap<Attribute, String>();
+	private final Map<Attribute, String> unqualifiedColumns =
+		new HashMap<Attribute, String>();
+	private final Map<List<Attribute>, String> columnLists =
+		new HashMap<List<Attribute>, String>();
+
+	private QuotedIdentifiers(ConnectedDB database) {
+		this.database = database;
+	}
+
+	public static synchronized QuotedIdentifiers get(ConnectedDB database) {
+		QuotedIdentifiers cache = caches.get(database);
+		if (cache == null) {
+			cache = new QuotedIdentifiers(database);
+			caches.put(database, cache);
+		}
+		return cache;
+	}
+
+	public synchronized String table(RelationName table) {
+		String result = tables.get(table);
+		if (result == null) {
+			result = database.quoteRelationName(table);
+			tables.put(table, result);
+		}
+		return result;
+	}
+
+	public synchronized String column(Attribute column, boolean qualified) {
+		Map<Attribute, String> columns = 
+			qualified ? qualifiedColumns : unqualifiedColumns;
+		String result = columns.get(column);
+		if (result == null) {
+			result = quote(column, qualified);
+			columns.put(column, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the unqualified columns, separated by commas
+	 */
+	public synchronized String columnList(List<Attribute> columns) {
+		String result = columnLists.get(columns);
+		if (result != null) {
+			return result;
+		}
+		StringBuilder list = new StringBuilder(columns.size() * 16);
+		for (Attribute column : columns) {
+			if (list.length() > 0) {
+				list.append(", ");
+			}
+			list.append(column(column, false));
+		}
+		result = list.toString();
+		if (columnLists.size() < MAXIMAL_NUMBER_OF_COLUMN_LISTS) {
+			columnLists.put(new ArrayList<Attribute>(columns), result);
+		}
+		return result;
+	}
+
+	private String quote(Attribute column, boolean qualified) {
+		if (qualified) {
+			return column.toSQL(database, AliasMap.NO_ALIASES);
+		}
+		// MySQL uses backticks
+		if (database.dbTypeIs(ConnectedDB.MySQL)) {
+			return database.backtickQuote(column.attributeName());
+		}
+		// PostgreSQL and Oracle (and SQL-92) use double quotes
+		return database.doubleQuote(column.attributeName());
+	}
+}
@@ -0,0 +1,168 @@
+/*
+   Copyright 2010 Technion - Israel Institute of Technology
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package il.ac.technion.cs.d2rqUpdate;
+
+import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.SQLTrace;
+import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.UpdateConnections;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import de.fuberlin.wiwiss.d2rq.D2RQException;
+import de.fuberlin.wiwiss.d2rq.algebra.Attribute;
+import de.fuberlin.wiwiss.d2rq.algebra.RelationName;
+import de.fuberlin.wiwiss.d2rq.sql.ConnectedDB;
+
+/**
+ * Checks the existence of many rows by a few queries: the keys of the rows
+ * are collected first, then all the keys of the same table are looked up
+ * together, up to MAXIMAL_NUMBER_OF_KEYS_PER_QUERY keys per query.
+ *
+ * @author Vadim Eisenberg <Vadim.Eisenberg@gmail.com>
+ */
+public class RowExistenceProbe {
+	static private Log log = LogFactory.getLog(RowExistenceProbe.class);
+
+	public static final int MAXIMAL_NUMBER_OF_KEYS_PER_QUERY = 500;
+
+	// the keys to look up, grouped by the database, the table and the key
+	// columns
+	private final Map<List<Object>, Set<Map<Attribute, String>>>
+		requestedKeys =
+			new LinkedHashMap<List<Object>, Set<Map<Attribute, String>>>();
+
+	private final Set<List<Object>> existingRows = new HashSet<List<Object>>();
+
+	private final UpdateMetrics metrics;
+	private final SQLTrace sqlTrace;
+
+	public RowExistenceProbe() {
+		this(new UpdateMetrics(), SQLTrace.DISABLED);
+	}
+
+	/**
+	 * @param metrics records the duration of the queries
+	 * @param sqlTrace traces the queries
+	 */
+	public RowExistenceProbe(UpdateMetrics metrics, SQLTrace sqlTrace) {
+		this.metrics = metrics;
+		this.sqlTrace = sqlTrace;
+	}
+
+	/**
+	 * @param database
+	 * @param table
+	 * @param key the values of the key columns of the row. A row without 
+	 * key values cannot be looked up and is considered not existing
+	 */
+	public void add(ConnectedDB database, RelationName table,
+		Map<Attribute, String> key) {
+		if (key.isEmpty()) {
+			log.warn("no key values to check the existence of a row of " + 
+					table + ", the row is considered not existing");
+			return;
+		}
+		List<Object> group = Arrays.<Object>asList(database, table,
+				key.keySet());
+		Set<Map<Attribute, String>> keys = requestedKeys.get(group);
+		if (keys == null) {
+			keys = new HashSet<Map<Attribute, String>>();
+			requestedKeys.put(group, keys);
+		}
+		keys.add(key);
+	}
+
+	/**
+	 * Looks up all the added keys
+	 */
+	public void execute() {
+		for (Map.Entry<List<Object>, Set<Map<Attribute, String>>> entry :
+			requestedKeys.entrySet()) {
+			ConnectedDB database = (ConnectedDB) entry.getKey().get(0);
+			RelationName table = (RelationName) entry.getKey().get(1);
+			List<Map<Attribute, String>> keys =
+				new ArrayList<Map<Attribute, String>>(entry.getValue());
+
+			for (int start = 0; start < keys.size();
+				start += MAXIMAL_NUMBER_OF_KEYS_PER_QUERY) {
+				int end = Math.min(start + MAXIMAL_NUMBER_OF_KEYS_PER_QUERY,
+						keys.size());
+				execute(database, table, keys.subList(start, end));
+			}
+		}
+		requestedKeys.clear();
+	}
+
+	/**
+	 * @return whether the row with the key was found, the key must have been
+	 * added before execute() was called
+	 */
+	public boolean exists(ConnectedDB database, RelationName table,
+		Map<Attribute, String> key) {
+		return existingRows.contains(Arrays.<Object>asList(database, table,
+				key));
+	}
+
+	private void execute(ConnectedDB database, RelationName table,
+		List<Map<Attribute, String>> keys) {
+
+		String selectSQLString = new KeyedSelectStatementBuilder(table, 
+				database, keys).getSQLStatement();
+		log.debug("select sqlString = " + selectSQLString);
+
+		long startTime = System.nanoTime();
+		try {
+			Statement statement = UpdateConnections.get(database).createStatement();
+			try {
+				ResultSet resultSet = statement.executeQuery(selectSQLString);
+				int numberOfRows = 0;
+				while (resultSet.next()) {
+					numberOfRows++;
+					int index = resultSet.getInt(1);
+					if (resultSet.wasNull()) {
+						continue;
+					}
+					existingRows.add(Arrays.<Object>asList(database, table,
+							keys.get(index)));
+				}
+				sqlTrace.traceQuery(table, selectSQLString, 
+						System.nanoTime() - startTime, numberOfRows);
+			}
+			finally {
+				statement.close();
+			}
+		} catch (SQLException exception) {
+			throw new D2RQException(exception.getMessage() + ": "
+					+ selectSQLString);
+		}
+		finally {
+			metrics.record(UpdateMetrics.Phase.EXISTENCE_PROBE, table, 
+					"SELECT", startTime);
+		}
+	}
+}
@@ -0,0 +1,213 @@
+/*
+   Copyright 2010 Technion - Israel Institute of Technology
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+
+package il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine;
+
+import il.ac.technion.cs.d2rqUpdate.KeyedSelectStatementBuilder;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import de.fuberlin.wiwiss.d2rq.D2RQException;
+import de.fuberlin.wiwiss.d2rq.algebra.Attribute;
+import de.fuberlin.wiwiss.d2rq.algebra.RelationName;
+import de.fuberlin.wiwiss.d2rq.sql.ConnectedDB;
+
+/**
+ * Reads the current values of columns in the rows updated by statements,
+ * for many statements at once: the requested columns of all the rows of a
+ * table are selected by a single query (per MAXIMAL_NUMBER_OF_KEYS_PER_QUERY
+ * rows), the rows of a statement are identified by its subject values. The
+ * subjects are grouped by their columns as well, since a row selected by 
+ * the query is reported only for the first subject that matches it, and 
+ * subjects of different columns may match the same row.
+ *
+ * @author Vadim Eisenberg <Vadim.Eisenberg@gmail.com>
+ */
+class ColumnValuesPrefetch {
+	static private Log log = LogFactory.getLog(ColumnValuesPrefetch.class);
+
+	static final int MAXIMAL_NUMBER_OF_KEYS_PER_QUERY = 500;
+
+	private final ConnectedDB database;
+	private final SQLTrace sqlTrace;
+
+	// the requested columns per subject values, grouped by the table and the
+	// columns of the subject values
+	private final Map<List<Object>, Map<Map<Attribute, String>, Set<Attribute>>>
+		requestedColumns = new LinkedHashMap<List<Object>,
+			Map<Map<Attribute, String>, Set<Attribute>>>();
+
+	// the values of a column in the rows of a subject, keyed by the table,
+	// the subject values and the column
+	private final Map<List<Object>, List<String>> values =
+		new HashMap<List<Object>, List<String>>();
+
+	ColumnValuesPrefetch(ConnectedDB database, SQLTrace sqlTrace) {
+		this.database = database;
+		this.sqlTrace = sqlTrace;
+	}
+
+	/**
+	 * @param statement
+	 * @param column a column of the table of the statement
+	 */
+	void add(UpdateStatement statement, Attribute column) {
+		List<Object> group = Arrays.<Object>asList(column.relationName(),
+				statement.getSubjectValues().keySet());
+		Map<Map<Attribute, String>, Set<Attribute>> columnsPerSubject =
+			requestedColumns.get(group);
+		if (columnsPerSubject == null) {
+			columnsPerSubject =
+				new LinkedHashMap<Map<Attribute, String>, Set<Attribute>>();
+			requestedColumns.put(group, columnsPerSubject);
+		}
+		Set<Attribute> columns =
+			columnsPerSubject.get(statement.getSubjectValues());
+		if (columns == null) {
+			columns = new HashSet<Attribute>();
+			columnsPerSubject.put(statement.getSubjectValues(), columns);
+		}
+		columns.add(column);
+	}
+
+	/**
+	 * Reads the values of all the added columns
+	 */
+	void execute() {
+		for (Map.Entry<List<Object>, Map<Map<Attribute, String>,
+				Set<Attribute>>> entry : requestedColumns.entrySet()) {
+			RelationName table = (RelationName) entry.getKey().get(0);
+			Map<Map<Attribute, String>, Set<Attribute>> columnsPerSubject =
+				entry.getValue();
+
+			Set<Attribute> columns = new LinkedHashSet<Attribute>();
+			for (Map.Entry<Map<Attribute, String>, Set<Attribute>>
+				subjectColumns : columnsPerSubject.entrySet()) {
+				columns.addAll(subjectColumns.getValue());
+				for (Attribute column : subjectColumns.getValue()) {
+					values.put(Arrays.<Object>asList(table,
+							subjectColumns.getKey(), column),
+							new ArrayList<String>(1));
+				}
+			}
+
+			List<Map<Attribute, String>> subjects =
+				new ArrayList<Map<Attribute, String>>(
+						columnsPerSubject.keySet());
+			for (int start = 0; start < subjects.size();
+				start += MAXIMAL_NUMBER_OF_KEYS_PER_QUERY) {
+				int end = Math.min(start + MAXIMAL_NUMBER_OF_KEYS_PER_QUERY,
+						subjects.size());
+				execute(table, subjects.subList(start, end),
+						new ArrayList<Attribute>(columns));
+			}
+		}
+		requestedColumns.clear();
+	}
+
+	/**
+	 * @return whether the column is NULL in some row of the statement
+	 */
+	boolean containsNULL(UpdateStatement statement, Attribute column) {
+		return getPrefetchedValues(statement, column).contains(null);
+	}
+
+	/**
+	 * @return the values of the column in the rows of the statement, "NULL"
+	 * if there are no such rows
+	 */
+	Set<String> getValues(UpdateStatement statement, Attribute column) {
+		List<String> columnValues = getPrefetchedValues(statement, column);
+		if (columnValues.isEmpty()) {
+			return Collections.singleton("NULL");
+		}
+		return new HashSet<String>(columnValues);
+	}
+
+	private List<String> getPrefetchedValues(UpdateStatement statement,
+		Attribute column) {
+		List<String> columnValues = values.get(Arrays.<Object>asList(
+				column.relationName(), statement.getSubjectValues(), column));
+		if (columnValues == null) {
+			throw new D2RQException("the values of " + column + " were not " +
+					"prefetched for " + statement.getSqlString());
+		}
+		return columnValues;
+	}
+
+	private void execute(RelationName table,
+		List<Map<Attribute, String>> subjects, List<Attribute> columns) {
+		for (Map<Attribute, String> subject : subjects) {
+			if (subject.isEmpty()) {
+				throw new D2RQException("no subject values to select the " +
+						"rows of " + table);
+			}
+		}
+
+		String selectSQLString = new KeyedSelectStatementBuilder(table,
+				database, subjects, columns).getSQLStatement();
+		log.debug("select sqlString = " + selectSQLString);
+
+		try {
+			Statement statement = UpdateConnections.get(database).createStatement();
+			try {
+				long startTime = System.nanoTime();
+				ResultSet resultSet = statement.executeQuery(selectSQLString);
+				int numberOfRows = 0;
+				while (resultSet.next()) {
+					numberOfRows++;
+					int index = resultSet.getInt(1);
+					if (resultSet.wasNull()) {
+						continue;
+					}
+					Map<Attribute, String> subject = subjects.get(index);
+					for (int column = 0; column < columns.size(); column++) {
+						List<String> columnValues = values.get(
+								Arrays.<Object>asList(table, subject,
+										columns.get(column)));
+						if (columnValues != null) {
+							columnValues.add(resultSet.getString(column + 2));
+						}
+					}
+				}
+				sqlTrace.traceQuery(table, selectSQLString, 
+						System.nanoTime() - startTime, numberOfRows);
+			}
+			finally {
+				statement.close();
+			}
+		} catch (SQLException exception) {
+			throw new D2RQException(exception.getMessage() + ": "
+					+ selectSQLString);
+		}
+	}
+}
@@ -0,0 +1,328 @@
+/*
+   Copyright 2010 Technion - Israel Institute of Technology
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import de.fuberlin.wiwiss.d2rq.sql.ConnectedDB;
+
+/**
+ * A bounded pool of connections, opened with the JDBC URL and the 
+ * credentials of the mapping, next to the connection of the mapping. The 
+ * connections are opened on demand, up to maximalSize connections at once 
+ * (for all the databases of the pool together); a request for a connection 
+ * waits at most waitTimeout milliseconds for a connection to be released. 
+ * A released connection is rolled back, if it is in a transaction, and is 
+ * kept open, together with its prepared statements. 
+ * 
+ * The pool counts the checkouts and the time spent waiting for connections,
+ * see the getters. 
+ *
+ * @author Vadim Eisenberg <Vadim.Eisenberg@gmail.com>
+ */
+public class ConnectionPool implements ConnectionProvider {
+	static private Log log = LogFactory.getLog(ConnectionPool.class);
+
+	public static final int DEFAULT_MAXIMAL_SIZE = 8;
+	public static final long DEFAULT_WAIT_TIMEOUT = 10000;
+
+	private final int maximalSize;
+	private final long waitTimeout;
+
+	private final Map<ConnectedDB, LinkedList<Connection>> idleConnections =
+		new HashMap<ConnectedDB, LinkedList<Connection>>();
+	// the connections that are open or being opened, idle or checked out
+	private int numberOfConnections = 0;
+	private int numberOfIdleConnections = 0;
+
+	private long numberOfCheckouts = 0;
+	private long numberOfWaits = 0;
+	private long numberOfTimeouts = 0;
+	private long totalWaitTime = 0;
+	private long maximalWaitTime = 0;
+	private boolean closed = false;
+
+	public ConnectionPool() {
+		this(DEFAULT_MAXIMAL_SIZE, DEFAULT_WAIT_TIMEOUT);
+	}
+
+	/**
+	 * @param maximalSize the maximal number of open connections
+	 * @param waitTimeout the maximal time to wait for a connection, in 
+	 * milliseconds, 0 to fail at once if all the connections are in use
+	 */
+	public ConnectionPool(int maximalSize, long waitTimeout) {
+		if (maximalSize < 1) {
+			throw new IllegalArgumentException(
+					"the size of a connection pool must be positive: " + 
+					maximalSize);
+		}
+		if (waitTimeout < 0) {
+			throw new IllegalArgumentException(
+					"the wait timeout must not be negative: " + waitTimeout);
+		}
+		this.maximalSize = maximalSize;
+		this.waitTimeout = waitTimeout;
+	}
+
+	public Connection getConnection(ConnectedDB database) 
+		throws SQLException {
+		long start = System.currentTimeMillis();
+		boolean waited = false;
+		synchronized (this) {
+			if (closed) {
+				throw new SQLException("The connection pool is closed");
+			}
+			numberOfCheckouts++;
+			while (true) {
+				Connection connection = pollIdleConnection(database);
+				if (connection != null) {
+					recordWait(waited, start);
+					return connection;
+				}
+				if (numberOfConnections < maximalSize) {
+					break;
+				}
+				if (numberOfIdleConnections > 0) {
+					// all the idle connections are of other databases
+					closeIdleConnectionOfAnotherDatabase();
+					break;
+				}
+				long remaining = 
+					start + waitTimeout - System.currentTimeMillis();
+				if (remaining <= 0) {
+					numberOfTimeouts++;
+					recordWait(true, start);
+					throw new SQLException("Timed out waiting " + waitTimeout + 
+							" ms for a connection to " + database.getJdbcURL() +
+							", all the " + maximalSize + 
+							" connections of the pool are in use");
+				}
+				waited = true;
+				try {
+					wait(remaining);
+				} catch (InterruptedException exception) {
+					Thread.currentThread().interrupt();
+					throw new SQLException("Interrupted while waiting for a " +
+							"connection to " + database.getJdbcURL());
+				}
+			}
+			numberOfConnections++;
+			recordWait(waited, start);
+		}
+
+		try {
+			return openConnection(database);
+		} catch (SQLException exception) {
+			connectionClosed();
+			throw exception;
+		} catch (RuntimeException exception) {
+			connectionClosed();
+			throw exception;
+		}
+	}
+
+	public void releaseConnection(ConnectedDB database, Connection connection) {
+		try {
+			if (connection.isClosed()) {
+				close(connection);
+				return;
+			}
+			if (!connection.getAutoCommit()) {
+				connection.rollback();
+				connection.setAutoCommit(true);
+			}
+		} catch (SQLException exception) {
+			log.warn("closing a connection that could not be reset", 
+					exception);
+			close(connection);
+			return;
+		}
+
+		synchronized (this) {
+			if (closed) {
+				close(connection);
+				return;
+			}
+			LinkedList<Connection> connections = idleConnections.get(database);
+			if (connections == null) {
+				connections = new LinkedList<Connection>();
+				idleConnections.put(database, connections);
+			}
+			connections.addLast(connection);
+			numberOfIdleConnections++;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Closes the idle connections, and the checked out connections when 
+	 * they are released, and refuses to provide connections afterwards
+	 */
+	public synchronized void close() {
+		closed = true;
+		clear();
+	}
+
+	/**
+	 * Closes the idle connections
+	 */
+	public synchronized void clear() {
+		for (LinkedList<Connection> connections : idleConnections.values()) {
+			for (Connection connection : connections) {
+				closeConnection(connection);
+				numberOfConnections--;
+			}
+		}
+		idleConnections.clear();
+		numberOfIdleConnections = 0;
+		notifyAll();
+	}
+
+	public int getMaximalSize() {
+		return maximalSize;
+	}
+
+	public long getWaitTimeout() {
+		return waitTimeout;
+	}
+
+	/**
+	 * @return the number of the open connections, idle or checked out
+	 */
+	public synchronized int getNumberOfConnections() {
+		return numberOfConnections;
+	}
+
+	public synchronized int getNumberOfIdleConnections() {
+		return numberOfIdleConnections;
+	}
+
+	public synchronized int getNumberOfActiveConnections() {
+		return numberOfConnections - numberOfIdleConnections;
+	}
+
+	public synchronized long getNumberOfCheckouts() {
+		return numberOfCheckouts;
+	}
+
+	/**
+	 * @return the number of the checkouts that waited for a connection to be
+	 * released
+	 */
+	public synchronized long getNumberOfWaits() {
+		return numberOfWaits;
+	}
+
+	public synchronized long getNumberOfTimeouts() {
+		return numberOfTimeouts;
+	}
+
+	/**
+	 * @return the total time the checkouts waited, in milliseconds
+	 */
+	public synchronized long getTotalWaitTime() {
+		return totalWaitTime;
+	}
+
+	/**
+	 * @return the longest time a checkout waited, in milliseconds
+	 */
+	public synchronized long getMaximalWaitTime() {
+		return maximalWaitTime;
+	}
+
+	private Connection pollIdleConnection(ConnectedDB database) {
+		LinkedList<Connection> connections = idleConnections.get(database);
+		while (connections != null && !connections.isEmpty()) {
+			Connection connection = connections.removeFirst();
+			numberOfIdleConnections--;
+			if (isOpen(connection)) {
+				return connection;
+			}
+			closeConnection(connection);
+			numberOfConnections--;
+		}
+		return null;
+	}
+
+	private void closeIdleConnectionOfAnotherDatabase() {
+		for (LinkedList<Connection> connections : idleConnections.values()) {
+			if (!connections.isEmpty()) {
+				closeConnection(connections.removeFirst());
+				numberOfIdleConnections--;
+				numberOfConnections--;
+				return;
+			}
+		}
+	}
+
+	private void recordWait(boolean waited, long start) {
+		if (!waited) {
+			return;
+		}
+		long waitTime = System.currentTimeMillis() - start;
+		numberOfWaits++;
+		totalWaitTime += waitTime;
+		maximalWaitTime = Math.max(maximalWaitTime, waitTime);
+	}
+
+	private synchronized void connectionClosed() {
+		numberOfConnections--;
+		notifyAll();
+	}
+
+	private void close(Connection connection) {
+		closeConnection(connection);
+		connectionClosed();
+	}
+
+	private Connection openConnection(ConnectedDB database) 
+		throws SQLException {
+		log.debug("opening a connection to " + database.getJdbcURL());
+		// the driver was loaded by the connection of the mapping
+		database.connection();
+		return database.getUsername() == null ?
+				DriverManager.getConnection(database.getJdbcURL()) :
+				DriverManager.getConnection(database.getJdbcURL(),
+						database.getUsername(), database.getPassword());
+	}
+
+	private static boolean isOpen(Connection connection) {
+		try {
+			return !connection.isClosed();
+		} catch (SQLException exception) {
+			return false;
+		}
+	}
+
+	private static void closeConnection(Connection connection) {
+		PreparedStatementCache.remove(connection);
+		try {
+			connection.close();
+		} catch (SQLException exception) {
+			log.warn(exception);
+		}
+	}
+}
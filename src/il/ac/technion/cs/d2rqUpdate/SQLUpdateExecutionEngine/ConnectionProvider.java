@@ -0,0 +1,55 @@
+/*
+   Copyright 2010 Technion - Israel Institute of Technology
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import de.fuberlin.wiwiss.d2rq.sql.ConnectedDB;
+
+/**
+ * Provides the database connections the updates are executed on. A
+ * connection is checked out for an update (see UpdateConnections) and is 
+ * released when the update is finished. Unless the provider is a 
+ * SharedConnectionProvider, a checked out connection must not be used by 
+ * other updates until it is released.
+ *
+ * @author Vadim Eisenberg <Vadim.Eisenberg@gmail.com>
+ * 
+ * @see SharedConnectionProvider
+ * @see ConnectionPool
+ */
+public interface ConnectionProvider {
+	/**
+	 * @param database
+	 * @return a connection to the database
+	 * @throws SQLException if no connection could be provided
+	 */
+	Connection getConnection(ConnectedDB database) throws SQLException;
+
+	/**
+	 * @param database
+	 * @param connection a connection returned by getConnection
+	 */
+	void releaseConnection(ConnectedDB database, Connection connection);
+
+	/**
+	 * Closes the connections opened by the provider. Called when the graph
+	 * that created the provider from its configuration is closed, no 
+	 * connection is requested afterwards.
+	 */
+	void close();
+}
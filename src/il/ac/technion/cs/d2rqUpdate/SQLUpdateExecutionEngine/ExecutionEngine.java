@@ -18,22 +18,30 @@
 package il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine;
 
 import il.ac.technion.cs.d2rqUpdate.D2RQUpdateException;
-import il.ac.technion.cs.d2rqUpdate.SelectStatementBuilder;
+import il.ac.technion.cs.d2rqUpdate.RowExistenceProbe;
+import il.ac.technion.cs.d2rqUpdate.SchemaMetadataCache;
+import il.ac.technion.cs.d2rqUpdate.UpdateConfiguration;
+import il.ac.technion.cs.d2rqUpdate.UpdateMetrics;
 import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.UpdateStatement.Type;
 
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -41,7 +49,6 @@ import org.jgrapht.DirectedGraph;
 import org.jgrapht.alg.CycleDetector;
 import org.jgrapht.graph.DefaultDirectedGraph;
 import org.jgrapht.graph.DefaultEdge;
-import org.jgrapht.traverse.TopologicalOrderIterator;
 
 import de.fuberlin.wiwiss.d2rq.D2RQException;
 import de.fuberlin.wiwiss.d2rq.algebra.Attribute;
@@ -58,6 +65,43 @@ public class ExecutionEngine {
 	private final List<UpdateStatement> statements = 
 		new ArrayList<UpdateStatement>();
 	
+	// whether the rows inserted or deleted by the added statements exist 
+	// after the statements are executed, keyed by the database, the table
+	// and the values of the primary key
+	private final Map<List<Object>, Boolean> pendingRowExistence = 
+		new HashMap<List<Object>, Boolean>();
+	
+	private final int batchSize;
+	private final boolean commitEveryBatch;
+	private final int maxRowsPerInsert;
+	private final int maxRowsPerDelete;
+	private final UpdateMetrics metrics;
+	private final SQLTrace sqlTrace;
+	// numbers the JDBC batches in the trace
+	private final AtomicInteger numberOfBatches = new AtomicInteger();
+	
+	public ExecutionEngine() {
+		this(new UpdateConfiguration());
+	}
+	
+	public ExecutionEngine(UpdateConfiguration configuration) {
+		this(configuration, new UpdateMetrics());
+	}
+	
+	/**
+	 * @param metrics records the durations of building the dependency graph,
+	 * sorting and executing the statements
+	 */
+	public ExecutionEngine(UpdateConfiguration configuration, 
+		UpdateMetrics metrics) {
+		this.batchSize = configuration.getBatchSize();
+		this.commitEveryBatch = configuration.getCommitEveryBatch();
+		this.maxRowsPerInsert = configuration.getMaxRowsPerInsert();
+		this.maxRowsPerDelete = configuration.getMaxRowsPerDelete();
+		this.metrics = metrics;
+		this.sqlTrace = configuration.createSQLTrace();
+	}
+	
 	private static class ForeignKeyConstraint {
 		@Override
 		public int hashCode() {
@@ -121,12 +165,276 @@ public class ExecutionEngine {
 	
 	public void add(UpdateStatement statement){
 		statements.add(statement);
+		addPendingRowExistence(statement);
+	}
+	
+	private void addPendingRowExistence(UpdateStatement statement) {
+		UpdateStatement.Type type = statement.getUpdateType();
+		if (type != UpdateStatement.Type.INSERT && 
+			type != UpdateStatement.Type.UPSERT && 
+			type != UpdateStatement.Type.DELETE) {
+			return;
+		}
+		List<Object> row = getRow(statement);
+		if (row == null) {
+			return;
+		}
+		pendingRowExistence.put(row, type == UpdateStatement.Type.DELETE ? 
+				Boolean.FALSE : Boolean.TRUE);
+	}
+	
+	/**
+	 * Tells the updaters that add statements after other statements were 
+	 * added, whether a row exists, since the database does not reflect the
+	 * added statements yet. A row deleted by a statement is considered
+	 * deleted, since the deleted rows are checked before their statements 
+	 * are added.
+	 * 
+	 * @param database
+	 * @param table
+	 * @param key the values of the primary key of the row, or the subject 
+	 * values if they contain no primary key column
+	 * @return whether the row exists after the added statements are 
+	 * executed, null if no added statement inserts or deletes the row
+	 */
+	public Boolean getPendingRowExistence(ConnectedDB database, 
+		RelationName table, Map<Attribute, String> key) {
+		if (pendingRowExistence.isEmpty()) {
+			return null;
+		}
+		return pendingRowExistence.get(
+				Arrays.<Object>asList(database, table, key));
+	}
+	
+	private List<Object> getRow(UpdateStatement statement) {
+		List<Attribute> primaryKeys = 
+			SchemaMetadataCache.get(statement.getDatabase()).primaryKeyColumns(
+					statement.getTable());
+		Map<Attribute, String> key = 
+			new HashMap<Attribute, String>(primaryKeys.size());
+		for (Attribute primaryKey : primaryKeys) {
+			String value = statement.getSubjectValues().get(primaryKey);
+			if (value != null) {
+				key.put(primaryKey, value);
+			}
+		}
+		// as in AbstractTripleUpdater.getRowKey, the rows of a table without
+		// a primary key are identified by their subject values
+		if (key.isEmpty()) {
+			if (statement.getSubjectValues().isEmpty()) {
+				return null;
+			}
+			key = statement.getSubjectValues();
+		}
+		return Arrays.<Object>asList(statement.getDatabase(), 
+				statement.getTable(), key);
+	}
+	
+	/**
+	 * Removes the statements that set a foreign key to a value that is 
+	 * neither inserted by the other statements nor found in the referenced
+	 * table, together with the other statements of their rows. The triples
+	 * added window by window may reference rows of the later windows, so 
+	 * such rows are carried to the next window instead of failing on the 
+	 * foreign key constraint.
+	 * 
+	 * @return the removed statements, in the order they were added
+	 */
+	public List<UpdateStatement> removeStatementsWithMissingReferences() {
+		Set<UpdateStatement> removedStatements = 
+			new HashSet<UpdateStatement>();
+		Map<ConnectedDB, List<UpdateStatement>> statementsPerDatabase = 
+			new HashMap<ConnectedDB, List<UpdateStatement>>();
+		for (UpdateStatement statement : statements) {
+			List<UpdateStatement> statementsOfDatabase = 
+				statementsPerDatabase.get(statement.getDatabase());
+			if (statementsOfDatabase == null) {
+				statementsOfDatabase = new ArrayList<UpdateStatement>();
+				statementsPerDatabase.put(statement.getDatabase(), 
+						statementsOfDatabase);
+			}
+			statementsOfDatabase.add(statement);
+		}
+		for (Map.Entry<ConnectedDB, List<UpdateStatement>> entry : 
+			statementsPerDatabase.entrySet()) {
+			removedStatements.addAll(getStatementsWithMissingReferences(
+					entry.getKey(), entry.getValue()));
+		}
+		if (removedStatements.isEmpty()) {
+			return Collections.emptyList();
+		}
+		
+		List<UpdateStatement> result = new ArrayList<UpdateStatement>();
+		List<UpdateStatement> remainingStatements = 
+			new ArrayList<UpdateStatement>();
+		for (UpdateStatement statement : statements) {
+			if (removedStatements.contains(statement)) {
+				result.add(statement);
+			} else {
+				remainingStatements.add(statement);
+			}
+		}
+		clear();
+		for (UpdateStatement statement : remainingStatements) {
+			add(statement);
+		}
+		log.debug(result.size() + " statements reference rows that are " +
+				"not added yet");
+		return result;
+	}
+
+	/**
+	 * Removing the insert of a referenced row may leave the rows that 
+	 * reference it without the referenced row, so the statements are 
+	 * checked again until no more statements are found
+	 */
+	private Set<UpdateStatement> getStatementsWithMissingReferences(
+		ConnectedDB database, List<UpdateStatement> statements) {
+		Map<RelationName, Set<ForeignKeyConstraint>> foreignKeys = 
+			getForeignKeys(statements, database);
+		// whether the referenced values are found in the database, keyed 
+		// by the referenced attribute and the value
+		Map<List<Object>, Boolean> existingValues = 
+			new HashMap<List<Object>, Boolean>();
+		Set<UpdateStatement> result = new HashSet<UpdateStatement>();
+		
+		while (true) {
+			Set<List<Object>> insertedValues = new HashSet<List<Object>>();
+			for (UpdateStatement statement : statements) {
+				Type type = statement.getUpdateType();
+				if (!result.contains(statement) && 
+					(type == Type.INSERT || type == Type.UPSERT)) {
+					for (Map.Entry<Attribute, String> value : 
+						statement.getUpdatedAttributes().entrySet()) {
+						insertedValues.add(Arrays.<Object>asList(
+								value.getKey(), value.getValue()));
+					}
+				}
+			}
+			
+			Map<UpdateStatement, List<List<Object>>> references = 
+				getReferences(statements, result, foreignKeys, 
+						insertedValues);
+			probeReferencedValues(database, references.values(), 
+					existingValues);
+			
+			boolean found = false;
+			Set<List<Object>> missingRows = new HashSet<List<Object>>();
+			for (Map.Entry<UpdateStatement, List<List<Object>>> entry : 
+				references.entrySet()) {
+				for (List<Object> reference : entry.getValue()) {
+					if (!existingValues.get(reference)) {
+						found = true;
+						result.add(entry.getKey());
+						List<Object> row = getRow(entry.getKey());
+						if (row != null) {
+							missingRows.add(row);
+						}
+						break;
+					}
+				}
+			}
+			if (!found) {
+				return result;
+			}
+			for (UpdateStatement statement : statements) {
+				if (missingRows.contains(getRow(statement))) {
+					result.add(statement);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the referenced attributes and values of the foreign keys set
+	 * by the statements that are not inserted by the other statements
+	 */
+	private Map<UpdateStatement, List<List<Object>>> getReferences(
+		List<UpdateStatement> statements, 
+		Set<UpdateStatement> removedStatements,
+		Map<RelationName, Set<ForeignKeyConstraint>> foreignKeys,
+		Set<List<Object>> insertedValues) {
+		Map<UpdateStatement, List<List<Object>>> references = 
+			new HashMap<UpdateStatement, List<List<Object>>>();
+		for (UpdateStatement statement : statements) {
+			Type type = statement.getUpdateType();
+			if (removedStatements.contains(statement) || 
+				(type != Type.INSERT && type != Type.UPSERT && 
+				 type != Type.UPDATE_TO_NON_NULL_VALUE)) {
+				continue;
+			}
+			for (ForeignKeyConstraint foreignKey : 
+				foreignKeys.get(statement.getTable())) {
+				String value = statement.getUpdatedAttributes().get(
+						foreignKey.getReferencingAttribute());
+				if (value == null || value.equals("NULL")) {
+					continue;
+				}
+				List<Object> reference = Arrays.<Object>asList(
+						foreignKey.getReferencedAttribute(), value);
+				if (insertedValues.contains(reference)) {
+					continue;
+				}
+				List<List<Object>> referencesOfStatement = 
+					references.get(statement);
+				if (referencesOfStatement == null) {
+					referencesOfStatement = new ArrayList<List<Object>>(1);
+					references.put(statement, referencesOfStatement);
+				}
+				referencesOfStatement.add(reference);
+			}
+		}
+		return references;
+	}
+
+	/**
+	 * Looks up the referenced values not looked up yet, all together
+	 */
+	private void probeReferencedValues(ConnectedDB database, 
+		Collection<List<List<Object>>> references, 
+		Map<List<Object>, Boolean> existingValues) {
+		RowExistenceProbe probe = new RowExistenceProbe(metrics, sqlTrace);
+		List<List<Object>> probedReferences = new ArrayList<List<Object>>();
+		for (List<List<Object>> referencesOfStatement : references) {
+			for (List<Object> reference : referencesOfStatement) {
+				if (!existingValues.containsKey(reference)) {
+					Attribute attribute = (Attribute) reference.get(0);
+					probe.add(database, attribute.relationName(), 
+							Collections.singletonMap(attribute, 
+									(String) reference.get(1)));
+					probedReferences.add(reference);
+					existingValues.put(reference, Boolean.FALSE);
+				}
+			}
+		}
+		if (probedReferences.isEmpty()) {
+			return;
+		}
+		probe.execute();
+		for (List<Object> reference : probedReferences) {
+			Attribute attribute = (Attribute) reference.get(0);
+			existingValues.put(reference, probe.exists(database, 
+					attribute.relationName(), Collections.singletonMap(
+							attribute, (String) reference.get(1))));
+		}
 	}
 	
 	public void execute(){
-		List<UpdateStatement> sortedStatements = getSortedStatements();
-		execute(sortedStatements);
+		long startTime = System.nanoTime();
+		DirectedGraph<UpdateStatement, DefaultEdge> dependencyGraph =
+			createDependciesGraph();
+		handleCycles(dependencyGraph);
+		metrics.record(UpdateMetrics.Phase.DEPENDENCY_GRAPH, startTime);
+		
+		startTime = System.nanoTime();
+		List<UpdateStatement> sortedStatements = 
+			getTopologicallySortedStatements(dependencyGraph);
+		metrics.record(UpdateMetrics.Phase.SORT, startTime);
+		
+		execute(new StatementCoalescer(maxRowsPerInsert, 
+				maxRowsPerDelete).coalesce(sortedStatements, dependencyGraph));
 		statements.clear();
+		pendingRowExistence.clear();
 	}
 	
 	/**
@@ -141,18 +449,9 @@ public class ExecutionEngine {
 		
 		//TODO implement handling different databases
 		Connection connection = 
-			sortedStatements.get(0).getDatabase().connection();
+			UpdateConnections.get(sortedStatements.get(0).getDatabase());
 		
-		boolean executeInBatch = false;
-		try {
-			executeInBatch = 
-				connection.getMetaData().supportsBatchUpdates();
-		} catch (SQLException exception) {
-			log.warn(exception);
-			// do nothing - just do not execute in batch
-		}
-		
-		if (executeInBatch){
+		if (supportsBatchUpdates(connection)){
 			executeInBatch(sortedStatements, connection);
 		}
 		else {
@@ -160,25 +459,26 @@ public class ExecutionEngine {
 		}
 	}
 
+	private boolean supportsBatchUpdates(Connection connection) {
+		try {
+			return connection.getMetaData().supportsBatchUpdates();
+		} catch (SQLException exception) {
+			log.warn(exception);
+			// do nothing - just do not execute in batch
+			return false;
+		}
+	}
+
 	/**
 	 * @param sortedStatements
 	 * @param connection
 	 */
 	private void executeOneByOne(List<UpdateStatement> sortedStatements,
 		Connection connection) {
+		PreparedStatementCache preparedStatements = 
+			PreparedStatementCache.get(connection);
 		try {	   
-			for (UpdateStatement updateStatement : sortedStatements) {
-				log.debug("execute not in batch: " + 
-						updateStatement.getSqlString());
-				 Statement statement = 
-						connection.createStatement(ResultSet.TYPE_FORWARD_ONLY,
-							ResultSet.CONCUR_READ_ONLY);
-				int updateCounter = 
-					statement.executeUpdate(updateStatement.getSqlString());
-				checkUpdateCounter(updateCounter, updateStatement);
-				statement.close();
-			}		
-			
+			executeOneByOne(sortedStatements, connection, preparedStatements);
 		}
 		catch (SQLException exception) {
 			throw new D2RQException(exception);
@@ -186,6 +486,39 @@ public class ExecutionEngine {
 		
 	}
 
+	private void executeOneByOne(List<UpdateStatement> sortedStatements,
+		Connection connection, PreparedStatementCache preparedStatements) 
+		throws SQLException {
+		for (UpdateStatement updateStatement : sortedStatements) {
+			log.debug("execute not in batch: " + 
+					updateStatement.getSqlString());
+			PreparedStatement statement = preparedStatements.prepare(
+					updateStatement.getSqlTemplate());
+			bindParameters(statement, updateStatement);
+			long startTime = System.nanoTime();
+			int updateCounter = statement.executeUpdate();
+			recordExecution(updateStatement, startTime);
+			sqlTrace.traceUpdate(updateStatement, 
+					System.nanoTime() - startTime, updateCounter, -1, 0);
+			checkUpdateCounter(updateCounter, updateStatement);
+		}		
+	}
+
+	/**
+	 * @param statement
+	 * @param updateStatement
+	 * @throws SQLException
+	 */
+	private void bindParameters(PreparedStatement statement,
+		UpdateStatement updateStatement) throws SQLException {
+		int parameterIndex = 1;
+		for (String parameter : updateStatement.getParameters()) {
+			SQLLiteral.bind(statement, parameterIndex, parameter, 
+					updateStatement.getDatabase());
+			parameterIndex++;
+		}
+	}
+
 	/**
 	 * @param updateCounter
 	 * @param updateStatement
@@ -201,30 +534,173 @@ public class ExecutionEngine {
 		}
 	}
 
+	/**
+	 * The statements are sent to the database in chunks of at most batchSize
+	 * statements, in one transaction, or in a transaction per chunk if 
+	 * commitEveryBatch is set. Inside the transaction of a request the 
+	 * statements are not committed, the request commits them. On failure, 
+	 * the current transaction is rolled back. 
+	 */
 	private void executeInBatch(List<UpdateStatement> sortedStatements,
 		Connection connection) {
+		PreparedStatementCache preparedStatements = 
+			PreparedStatementCache.get(connection);
+		
+		int chunkSize = batchSize > 0 ? batchSize : sortedStatements.size();
+		boolean previousAutoCommit = true;
 		try {
-			boolean previousAutoCommit = connection.getAutoCommit();
-		    connection.setAutoCommit(false);
-		    Statement statement = 
-				connection.createStatement(ResultSet.TYPE_FORWARD_ONLY,
-					ResultSet.CONCUR_READ_ONLY);
-		    
-			for (UpdateStatement updateStatement : sortedStatements) {
-				log.debug("add to batch: " + updateStatement.getSqlString());
-				statement.addBatch(updateStatement.getSqlString());
-			}
-			
-			int [] updateCounters = statement.executeBatch();
-			connection.commit();
-			connection.setAutoCommit(previousAutoCommit);
-			statement.close();
-			checkUpdateCounters(updateCounters, sortedStatements);
+			previousAutoCommit = connection.getAutoCommit();
+			connection.setAutoCommit(false);
+			boolean commit = !UpdateConnections.isInTransaction();
 			
+			for (int chunkStart = 0; chunkStart < sortedStatements.size(); 
+				chunkStart += chunkSize) {
+				List<UpdateStatement> chunk = sortedStatements.subList(
+						chunkStart, 
+						Math.min(chunkStart + chunkSize, sortedStatements.size()));
+				executeChunk(chunk, connection, preparedStatements);
+				if (commit && commitEveryBatch) {
+					connection.commit();
+				}
+			}
+			
+			if (commit && !commitEveryBatch) {
+				connection.commit();
+			}
 		}
 		catch (SQLException exception) {
+			rollback(connection);
 			throw new D2RQException(exception);
 		}
+		catch (RuntimeException exception) {
+			rollback(connection);
+			throw exception;
+		}
+		finally {
+			restoreAutoCommit(connection, previousAutoCommit);
+		}
+	}
+
+	/**
+	 * Consecutive statements of the same shape are added to the batch of a 
+	 * single prepared statement. The batch is executed when the shape 
+	 * changes, so the statements are executed in the given order. The 
+	 * prepared statements are reused by the next updates, so on failure the
+	 * rows left in the batch of the current statement are cleared.
+	 */
+	private void executeChunk(List<UpdateStatement> chunk,
+		Connection connection, PreparedStatementCache preparedStatements) 
+		throws SQLException {
+		int [] updateCounters = new int[chunk.size()];
+		PreparedStatement statement = null;
+		String sqlTemplate = null;
+		int batchStart = 0;
+		
+		try {
+			for (int index = 0; index < chunk.size(); index++) {
+				UpdateStatement updateStatement = chunk.get(index);
+				if (!updateStatement.getSqlTemplate().equals(sqlTemplate)) {
+					executeBatch(statement, chunk, updateCounters, 
+							batchStart);
+					statement = null;
+					sqlTemplate = updateStatement.getSqlTemplate();
+					statement = preparedStatements.prepare(sqlTemplate);
+					batchStart = index;
+				}
+				log.debug("add to batch: " + updateStatement.getSqlString());
+				bindParameters(statement, updateStatement);
+				statement.addBatch();
+			}
+			executeBatch(statement, chunk, updateCounters, batchStart);
+		}
+		catch (SQLException exception) {
+			clearBatch(statement, sqlTemplate, preparedStatements);
+			throw exception;
+		}
+		catch (RuntimeException exception) {
+			clearBatch(statement, sqlTemplate, preparedStatements);
+			throw exception;
+		}
+		
+		checkUpdateCounters(updateCounters, chunk);
+	}
+
+	/**
+	 * Clears the rows added to the batch of the statement, so that the next
+	 * update that reuses the statement does not execute them. The statement
+	 * is evicted from the cache if its batch cannot be cleared.
+	 * 
+	 * @param statement the statement with the failed batch, or null
+	 */
+	private void clearBatch(PreparedStatement statement, String sqlTemplate,
+		PreparedStatementCache preparedStatements) {
+		if (statement == null) {
+			return;
+		}
+		try {
+			statement.clearBatch();
+		} catch (SQLException exception) {
+			log.warn(exception);
+			preparedStatements.evict(sqlTemplate);
+		}
+	}
+
+	private void rollback(Connection connection) {
+		// the transaction of the request, if any, is rolled back as well
+		UpdateConnections.setRollbackOnly();
+		try {
+			connection.rollback();
+		} catch (SQLException exception) {
+			log.warn(exception);
+		}
+	}
+
+	private void restoreAutoCommit(Connection connection, 
+		boolean previousAutoCommit) {
+		try {
+			connection.setAutoCommit(previousAutoCommit);
+		} catch (SQLException exception) {
+			log.warn(exception);
+		}
+	}
+
+	/**
+	 * @param statement the statement the batch was added to, or null
+	 * @param chunk the statements the batch was added from
+	 * @param updateCounters receives the update counters of the batch
+	 * @param batchStart the index of the first statement of the batch
+	 * @throws SQLException 
+	 */
+	private void executeBatch(PreparedStatement statement, 
+		List<UpdateStatement> chunk, int[] updateCounters, int batchStart) 
+		throws SQLException {
+		if (statement == null) {
+			return;
+		}
+		long startTime = System.nanoTime();
+		int [] batchUpdateCounters = statement.executeBatch();
+		long duration = System.nanoTime() - startTime;
+		// the statements of a batch share the template, hence the table and
+		// the type
+		recordExecution(chunk.get(batchStart), startTime);
+		if (sqlTrace.isActive()) {
+			int batch = numberOfBatches.getAndIncrement();
+			for (int position = 0; position < batchUpdateCounters.length; 
+				position++) {
+				sqlTrace.traceUpdate(chunk.get(batchStart + position), 
+						duration, batchUpdateCounters[position], batch, 
+						position);
+			}
+		}
+		System.arraycopy(batchUpdateCounters, 0, updateCounters, batchStart, 
+				batchUpdateCounters.length);
+	}
+
+	private void recordExecution(UpdateStatement updateStatement, 
+		long startTime) {
+		metrics.record(UpdateMetrics.Phase.SQL_EXECUTION, 
+				updateStatement.getTable(), 
+				updateStatement.getUpdateType().toString(), startTime);
 	}
 
 	/**
@@ -242,18 +718,10 @@ public class ExecutionEngine {
 	
 	
 	/**
-	 * @return
-	 */
-	private List<UpdateStatement> getSortedStatements() {
-		
-		DirectedGraph<UpdateStatement, DefaultEdge> dependencyGraph =
-				createDependciesGraph();
-		
-		handleCycles(dependencyGraph);		
-		return getTopologicallySortedStatements(dependencyGraph);
-	}
-
-	/**
+	 * Kahn's algorithm. Among the statements that are ready to be executed, 
+	 * the statements of the same shape (SQL template) are taken one after 
+	 * another, so they can be batched and coalesced.
+	 * 
 	 * @param dependencyGraph
 	 * @return
 	 */
@@ -263,12 +731,53 @@ public class ExecutionEngine {
 		List<UpdateStatement> sortedStatements = 
 			new ArrayList<UpdateStatement>(statements.size());
 		
-		Iterator<UpdateStatement> iterator =
-            new TopologicalOrderIterator<UpdateStatement, DefaultEdge>(
-            		dependencyGraph);
+		final Map<UpdateStatement, Integer> positions = 
+			new HashMap<UpdateStatement, Integer>(statements.size());
+		for (UpdateStatement statement : dependencyGraph.vertexSet()) {
+			positions.put(statement, positions.size());
+		}
+		
+		PriorityQueue<UpdateStatement> readyStatements = 
+			new PriorityQueue<UpdateStatement>(positions.size() + 1,
+				new Comparator<UpdateStatement>() {
+					public int compare(UpdateStatement statement1,
+						UpdateStatement statement2) {
+						int result = statement1.getSqlTemplate().compareTo(
+								statement2.getSqlTemplate());
+						if (result != 0) {
+							return result;
+						}
+						return positions.get(statement1).compareTo(
+								positions.get(statement2));
+					}
+				});
 		
-		while(iterator.hasNext()){
-			sortedStatements.add(iterator.next());
+		Map<UpdateStatement, Integer> inDegrees = 
+			new HashMap<UpdateStatement, Integer>(positions.size());
+		for (UpdateStatement statement : dependencyGraph.vertexSet()) {
+			int inDegree = dependencyGraph.inDegreeOf(statement);
+			if (inDegree == 0) {
+				readyStatements.add(statement);
+			} else {
+				inDegrees.put(statement, inDegree);
+			}
+		}
+		
+		while (!readyStatements.isEmpty()) {
+			UpdateStatement statement = readyStatements.poll();
+			sortedStatements.add(statement);
+			for (DefaultEdge edge : 
+				dependencyGraph.outgoingEdgesOf(statement)) {
+				UpdateStatement dependentStatement = 
+					dependencyGraph.getEdgeTarget(edge);
+				int inDegree = inDegrees.get(dependentStatement) - 1;
+				if (inDegree == 0) {
+					inDegrees.remove(dependentStatement);
+					readyStatements.add(dependentStatement);
+				} else {
+					inDegrees.put(dependentStatement, inDegree);
+				}
+			}
 		}
 	
 		return sortedStatements;
@@ -300,10 +809,33 @@ public class ExecutionEngine {
 		DirectedGraph<UpdateStatement, DefaultEdge> dependencyGraph =
 			createGraphWithVerticesOnly();
 		
+		addRowOrderEdges(dependencyGraph);
 		addDependencyEdges(dependencyGraph);
 		return dependencyGraph;
 	}
 
+	/**
+	 * The statements that update the same row are executed in the order they
+	 * were added, the sort is free to reorder only the other statements.
+	 * @param dependencyGraph
+	 */
+	private void addRowOrderEdges(
+		DirectedGraph<UpdateStatement, DefaultEdge> dependencyGraph) {
+		Map<List<Object>, UpdateStatement> lastStatementsPerRow = 
+			new HashMap<List<Object>, UpdateStatement>();
+		
+		for (UpdateStatement statement : statements) {
+			List<Object> row = Arrays.<Object>asList(statement.getTable(), 
+					statement.getSubjectValues());
+			UpdateStatement previousStatement = 
+				lastStatementsPerRow.put(row, statement);
+			if (previousStatement != null && 
+					!previousStatement.equals(statement)) {
+				dependencyGraph.addEdge(previousStatement, statement);
+			}
+		}
+	}
+
 	private void addDependencyEdges(
 		DirectedGraph<UpdateStatement, DefaultEdge> dependencyGraph) {
 		if(statements.size() < 1) {
@@ -319,18 +851,83 @@ public class ExecutionEngine {
 		Map<Attribute, Set<UpdateStatement>> attributes2StatementsMap =
 				getAttributes2StatementsMap(statements);
 		
+		// the values of the foreign keys in the rows being deleted are read
+		// at once, the edges are then computed in memory
+		ColumnValuesPrefetch prefetch = new ColumnValuesPrefetch(database, sqlTrace);
+		for (Set<ForeignKeyConstraint> foreignKeysPerTable : 
+			foreignKeys.values()) {
+			for ( ForeignKeyConstraint foreignKey : foreignKeysPerTable) {
+				addPrefetchedColumns(prefetch, attributes2StatementsMap, 
+						foreignKey);
+			}
+		}
+		prefetch.execute();
+		
 		for (Set<ForeignKeyConstraint> foreignKeysPerTable : 
 			foreignKeys.values()) {
 			for ( ForeignKeyConstraint foreignKey : foreignKeysPerTable) {
-				addDependencyEdges(dependencyGraph, database,
+				addDependencyEdges(dependencyGraph, prefetch,
 						attributes2StatementsMap, foreignKey);
 			}
 		}
 	}
 
+	/**
+	 * Requests the values of the columns that are compared to order the 
+	 * deletes of the referenced rows after the updates to NULL or the 
+	 * deletes of the referencing rows 
+	 * @param prefetch
+	 * @param attributes2StatementsMap
+	 * @param foreignKey
+	 */
+	private void addPrefetchedColumns(ColumnValuesPrefetch prefetch,
+		Map<Attribute, Set<UpdateStatement>> attributes2StatementsMap,
+		ForeignKeyConstraint foreignKey) {
+		Attribute referencingAttribute = 
+			foreignKey.getReferencingAttribute();
+		Attribute referencedAttribute = 
+			foreignKey.getReferencedAttribute();
+		
+		Set<UpdateStatement> referencingStatements = 
+			attributes2StatementsMap.get(referencingAttribute);
+		Set<UpdateStatement> referencedStatements = 
+			attributes2StatementsMap.get(referencedAttribute);
+		if (referencingStatements == null || referencedStatements == null) {
+			return;
+		}
+		
+		List<UpdateStatement> referencedDeletes = 
+			new ArrayList<UpdateStatement>();
+		for (UpdateStatement referencedStatement : referencedStatements) {
+			if (referencedStatement.getUpdateType() == Type.DELETE) {
+				referencedDeletes.add(referencedStatement);
+			}
+		}
+		if (referencedDeletes.isEmpty()) {
+			return;
+		}
+		
+		boolean referencingRowsAreDeleted = false;
+		for (UpdateStatement referencingStatement : referencingStatements) {
+			Type referencingType = referencingStatement.getUpdateType();
+			if (referencingType == Type.UPDATE_TO_NULL ||
+				referencingType == Type.DELETE) {
+				prefetch.add(referencingStatement, referencingAttribute);
+				referencingRowsAreDeleted = true;
+			}
+		}
+		if (!referencingRowsAreDeleted) {
+			return;
+		}
+		
+		for (UpdateStatement referencedStatement : referencedDeletes) {
+			prefetch.add(referencedStatement, referencedAttribute);
+		}
+	}
+
 	private void addDependencyEdges(
 		DirectedGraph<UpdateStatement, DefaultEdge> dependencyGraph,
-		ConnectedDB database,
+		ColumnValuesPrefetch prefetch,
 		Map<Attribute, Set<UpdateStatement>> attributes2StatementsMap,
 		ForeignKeyConstraint foreignKey) {
 		Attribute referencingAttribute = 
@@ -353,137 +950,118 @@ public class ExecutionEngine {
 		Set<UpdateStatement> referencedStatements = 
 			attributes2StatementsMap.get(referencedAttribute);
 	
-		addDependencyEdges(dependencyGraph, database,
+		addDependencyEdges(dependencyGraph, prefetch,
 				referencingAttribute, referencedAttribute, referencingStatements,
 				referencedStatements);
 	}
 
+	/**
+	 * Joins the referencing statements with the referenced statements by 
+	 * hashing: the referenced statements are indexed by their values, and 
+	 * the index is probed by the values of the referencing statements.
+	 */
 	private void addDependencyEdges(
 		DirectedGraph<UpdateStatement, DefaultEdge> dependencyGraph,
-		ConnectedDB database, Attribute referencingAttribute,
+		ColumnValuesPrefetch prefetch, Attribute referencingAttribute,
 		Attribute referencedAttribute, 
 		Set<UpdateStatement> referencingStatements,
 		Set<UpdateStatement> referencedStatements) {
 		
+		// the inserted referenced rows by the new values of the referenced
+		// attribute, and the deleted referenced rows by the current values
+		// (indexed only if needed, since their values are prefetched only if
+		// some referencing rows are deleted)
+		Map<String, List<UpdateStatement>> insertsByNewValue = 
+			new HashMap<String, List<UpdateStatement>>();
+		Map<String, List<UpdateStatement>> deletesByDeletedValue = null;
+		
+		for(UpdateStatement referencedStatement : referencedStatements){
+			Type referencedType = referencedStatement.getUpdateType();
+			if (referencedType == Type.INSERT || 
+				referencedType == Type.UPSERT) {
+				addToIndex(insertsByNewValue, 
+						referencedStatement.getUpdatedAttributes().get(
+								referencedAttribute), referencedStatement);
+			}
+		}
 		
 		for(UpdateStatement referencingStatement : referencingStatements){
 			Type referencingType = referencingStatement.getUpdateType();
-			String newReferencingValue =  
-				referencingStatement.getUpdatedAttributes().
-				get(referencingAttribute);
 			
-			for(UpdateStatement referencedStatement : referencedStatements){
-				Type referencedType = referencedStatement.getUpdateType();
-				String newReferencedValue =  
-					referencedStatement.getUpdatedAttributes().
-					get(referencedAttribute);
-				
-				if((referencingType == Type.UPDATE_TO_NON_NULL_VALUE ||
-				    referencingType == Type.INSERT) &&
-				   referencedType == Type.INSERT) {
-					if (newReferencingValue.equals(newReferencedValue)) {
+			if (referencingType == Type.UPDATE_TO_NON_NULL_VALUE ||
+				referencingType == Type.INSERT || 
+				referencingType == Type.UPSERT) {
+				String newReferencingValue =  
+					referencingStatement.getUpdatedAttributes().
+					get(referencingAttribute);
+				List<UpdateStatement> referencedInserts = 
+					insertsByNewValue.get(newReferencingValue);
+				if (referencedInserts != null) {
+					for (UpdateStatement referencedStatement : 
+						referencedInserts) {
 						dependencyGraph.addEdge(referencedStatement,
 								referencingStatement);
 					}
 				}
+			}
+			
+			if (referencingType == Type.UPDATE_TO_NULL ||
+				referencingType == Type.DELETE) {
+				// delete of the primary key must happen after the 
+				// update to NULL or delete of the foreign key
+				if (prefetch.containsNULL(referencingStatement,
+						referencingAttribute)) {
+					continue;
+				}
 				
-				if( referencedType == Type.DELETE &&
-					(referencingType == Type.UPDATE_TO_NULL ||
-				     referencingType == Type.DELETE)) {
-					// delete of the primary key must happen after the 
-					// update to NULL or delete of the foreign key
-					
-					if (!containsNULL(referencingAttribute,referencingStatement, 
-							database)) {
-						Set<String>  deletedReferencingValues = 
-							getValue(referencingAttribute,referencingStatement, 
-									database);
-						
-						Set<String> deletedReferencedValues = 
-							getValue(referencedAttribute,referencedStatement, 
-									database);
-						
-						deletedReferencingValues.retainAll(
-									deletedReferencedValues);
-								
-						if (!deletedReferencingValues.isEmpty()) {
-							dependencyGraph.addEdge(referencingStatement,
-									referencedStatement);
-						}
-					}
+				if (deletesByDeletedValue == null) {
+					deletesByDeletedValue = indexDeletes(prefetch, 
+							referencedAttribute, referencedStatements);
 				}
 				
-			}	
+				for (String deletedReferencingValue : 
+					prefetch.getValues(referencingStatement, 
+							referencingAttribute)) {
+					List<UpdateStatement> referencedDeletes = 
+						deletesByDeletedValue.get(deletedReferencingValue);
+					if (referencedDeletes == null) {
+						continue;
+					}
+					for (UpdateStatement referencedStatement : 
+						referencedDeletes) {
+						dependencyGraph.addEdge(referencingStatement,
+								referencedStatement);
+					}
+				}
+			}
 		}
-	}
-
-	/**
-	 * @param referencingAttribute
-	 * @param referencingStatement
-	 * @param database
-	 * @return
-	 */
-	private Set<String> getValue(Attribute referencingAttribute,
-		UpdateStatement referencingStatement, ConnectedDB database) {
-		
-		
-		Map<Attribute,String> conditionValues = new HashMap<Attribute,String>();
-		conditionValues.putAll(referencingStatement.getSubjectValues());
-		
-		String selectSQLString = new SelectStatementBuilder(
-				referencingAttribute.relationName(), database,
-				Collections.singleton(referencingAttribute),
-				conditionValues
-				).getSQLStatement();
-				
-			try {
-				Connection connection = database.connection();
-				Statement selectStatement = connection.createStatement();
-				ResultSet resultSet = selectStatement.executeQuery(selectSQLString);
-				if (!resultSet.next()) {
-					return Collections.singleton("NULL");
+	}
+
+	private Map<String, List<UpdateStatement>> indexDeletes(
+		ColumnValuesPrefetch prefetch, Attribute referencedAttribute,
+		Set<UpdateStatement> referencedStatements) {
+		Map<String, List<UpdateStatement>> deletesByDeletedValue = 
+			new HashMap<String, List<UpdateStatement>>();
+		for(UpdateStatement referencedStatement : referencedStatements){
+			if (referencedStatement.getUpdateType() == Type.DELETE) {
+				for (String deletedReferencedValue : prefetch.getValues(
+						referencedStatement, referencedAttribute)) {
+					addToIndex(deletesByDeletedValue, deletedReferencedValue, 
+							referencedStatement);
 				}
-				Set<String> values = new HashSet<String>();
-				do {
-					values.add(resultSet.getString(1));
-				} while (resultSet.next());
-				return values;
-			}
-			catch (SQLException exceptionFromQuery) {
-				throw new D2RQException(exceptionFromQuery.getMessage() + ": " 
-										+ selectSQLString);
 			}
+		}
+		return deletesByDeletedValue;
 	}
 
-	/**
-	 * @param referencingAttribute
-	 * @param referencingStatement 
-	 * @return
-	 */
-	private boolean containsNULL(Attribute referencingAttribute, 
-		UpdateStatement referencingStatement, ConnectedDB database) {
-		
-		Map<Attribute,String> conditionValues = new HashMap<Attribute,String>();
-		conditionValues.putAll(referencingStatement.getSubjectValues());
-		conditionValues.put(referencingAttribute,"NULL");
-		
-		String selectSQLString = new SelectStatementBuilder(
-				referencingAttribute.relationName(), database,
-				Collections.singleton(referencingAttribute),
-				conditionValues
-				).getSQLStatement() + 
-				" LIMIT 1";
-					
-			try {
-				Connection connection = database.connection();
-				Statement selectStatement = connection.createStatement();
-				ResultSet resultSet = selectStatement.executeQuery(selectSQLString);
-				return resultSet.next();
-			}
-			catch (SQLException exceptionFromQuery) {
-				throw new D2RQException(exceptionFromQuery.getMessage() + ": " 
-										+ selectSQLString);
-			}
+	private static void addToIndex(Map<String, List<UpdateStatement>> index,
+		String value, UpdateStatement statement) {
+		List<UpdateStatement> statementsPerValue = index.get(value);
+		if (statementsPerValue == null) {
+			statementsPerValue = new ArrayList<UpdateStatement>(1);
+			index.put(value, statementsPerValue);
+		}
+		statementsPerValue.add(statement);
 	}
 
 	private DirectedGraph<UpdateStatement, DefaultEdge> 
@@ -522,7 +1100,7 @@ public class ExecutionEngine {
 		
 		DatabaseMetaData metaData = null;
 		try {
-			metaData = database.connection().getMetaData();
+			metaData = UpdateConnections.get(database).getMetaData();
 		} catch (SQLException exception) {
 			throw new D2RQException(exception);
 		}
@@ -613,5 +1191,6 @@ public class ExecutionEngine {
 
 	public void clear(){
 		statements.clear();
+		pendingRowExistence.clear();
 	}
 }
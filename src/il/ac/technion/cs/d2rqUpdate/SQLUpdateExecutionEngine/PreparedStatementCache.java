@@ -0,0 +1,127 @@
+/*
+   Copyright 2010 Technion - Israel Institute of Technology
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+
+package il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps the prepared statements of a database connection, keyed by their
+ * SQL templates, so that the database parses and plans each statement shape
+ * only once. The least recently used statements are closed when the cache
+ * is full. The prepared statements refer to their connection, so the cache
+ * of a connection has to be removed explicitly when the connection is 
+ * closed.
+ *
+ * @author Vadim Eisenberg <Vadim.Eisenberg@gmail.com>
+ */
+class PreparedStatementCache {
+	static private Log log = LogFactory.getLog(PreparedStatementCache.class);
+
+	private static final int MAXIMAL_NUMBER_OF_STATEMENTS = 64;
+
+	private static final Map<Connection, PreparedStatementCache> caches =
+		new WeakHashMap<Connection, PreparedStatementCache>();
+
+	private final Connection connection;
+
+	private final Map<String, PreparedStatement> statements =
+		new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+				Map.Entry<String, PreparedStatement> eldest) {
+				if (size() <= MAXIMAL_NUMBER_OF_STATEMENTS) {
+					return false;
+				}
+				close(eldest.getValue());
+				return true;
+			}
+		};
+
+	private PreparedStatementCache(Connection connection) {
+		this.connection = connection;
+	}
+
+	static synchronized PreparedStatementCache get(Connection connection) {
+		PreparedStatementCache cache = caches.get(connection);
+		if (cache == null) {
+			cache = new PreparedStatementCache(connection);
+			caches.put(connection, cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * Closes the prepared statements of the connection and forgets them
+	 */
+	static void remove(Connection connection) {
+		PreparedStatementCache cache;
+		synchronized (PreparedStatementCache.class) {
+			cache = caches.remove(connection);
+		}
+		if (cache != null) {
+			cache.clear();
+		}
+	}
+
+	synchronized PreparedStatement prepare(String sqlTemplate) 
+		throws SQLException {
+		PreparedStatement statement = statements.get(sqlTemplate);
+		if (statement == null) {
+			log.debug("prepare: " + sqlTemplate);
+			statement = connection.prepareStatement(sqlTemplate);
+			statements.put(sqlTemplate, statement);
+		}
+		statement.clearParameters();
+		return statement;
+	}
+
+	/**
+	 * Closes the prepared statement of the template and forgets it
+	 */
+	synchronized void evict(String sqlTemplate) {
+		PreparedStatement statement = statements.remove(sqlTemplate);
+		if (statement != null) {
+			close(statement);
+		}
+	}
+
+	synchronized void clear() {
+		for (PreparedStatement statement : statements.values()) {
+			close(statement);
+		}
+		statements.clear();
+	}
+
+	private static void close(PreparedStatement statement) {
+		try {
+			statement.close();
+		} catch (SQLException exception) {
+			log.warn(exception);
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/*
+   Copyright 2010 Technion - Israel Institute of Technology
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+
+package il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.regex.Pattern;
+
+import de.fuberlin.wiwiss.d2rq.sql.ConnectedDB;
+
+/**
+ * Converts the SQL literals produced by D2RQ (see
+ * de.fuberlin.wiwiss.d2rq.sql.ConnectedDB#quoteValue) into values of
+ * PreparedStatement parameters. Only quoted strings and numbers are bound,
+ * NULL and typed literals (DATE '...', TIMESTAMP '...') remain inlined in
+ * the SQL template.
+ *
+ * @author Vadim Eisenberg <Vadim.Eisenberg@gmail.com>
+ */
+public final class SQLLiteral {
+
+	private static final Pattern INTEGER = Pattern.compile("-?\\d{1,18}");
+	private static final Pattern DECIMAL =
+		Pattern.compile("-?(\\d+\\.?\\d*|\\.\\d+)([eE][-+]?\\d+)?");
+
+	private SQLLiteral() {
+	}
+
+	public static boolean isBindable(String literal) {
+		return isQuotedString(literal) || isNumber(literal);
+	}
+
+	/**
+	 * @param statement
+	 * @param parameterIndex
+	 * @param literal a literal for which isBindable returns true
+	 * @param database the database that produced the literal - used to
+	 * unescape the quoted strings
+	 * @throws SQLException
+	 */
+	public static void bind(PreparedStatement statement, int parameterIndex,
+		String literal, ConnectedDB database) throws SQLException {
+		if (isQuotedString(literal)) {
+			statement.setString(parameterIndex, unquote(literal, database));
+		} else if (INTEGER.matcher(literal).matches()) {
+			statement.setLong(parameterIndex, Long.parseLong(literal));
+		} else {
+			statement.setBigDecimal(parameterIndex, new BigDecimal(literal));
+		}
+	}
+
+	private static boolean isQuotedString(String literal) {
+		if (literal.length() < 2 || literal.charAt(0) != '\'' ||
+				literal.charAt(literal.length() - 1) != '\'') {
+			return false;
+		}
+		// make sure the closing quote is not escaped and there are no
+		// unescaped quotes inside
+		int index = 1;
+		int end = literal.length() - 1;
+		while (index < end) {
+			char character = literal.charAt(index);
+			if (character == '\\') {
+				index += 2;
+			} else if (character == '\'') {
+				if (index + 1 >= end || literal.charAt(index + 1) != '\'') {
+					return false;
+				}
+				index += 2;
+			} else {
+				index++;
+			}
+		}
+		return index == end;
+	}
+
+	private static boolean isNumber(String literal) {
+		return DECIMAL.matcher(literal).matches();
+	}
+
+	private static String unquote(String literal, ConnectedDB database) {
+		// MySQL escapes by backslash, SQL-92 by doubling the quote
+		boolean backslashEscapes = database.dbTypeIs(ConnectedDB.MySQL);
+
+		StringBuilder value = new StringBuilder(literal.length());
+		int end = literal.length() - 1;
+		for (int index = 1; index < end; index++) {
+			char character = literal.charAt(index);
+			if (character == '\'' ) {
+				// a doubled quote
+				index++;
+			} else if (character == '\\' && backslashEscapes) {
+				index++;
+				character = unescape(literal.charAt(index));
+			}
+			value.append(character);
+		}
+		return value.toString();
+	}
+
+	private static char unescape(char escaped) {
+		switch (escaped) {
+			case 'n': return '\n';
+			case 'r': return '\r';
+			case 't': return '\t';
+			case '0': return '\0';
+			default: return escaped;
+		}
+	}
+}
@@ -0,0 +1,213 @@
+/*
+   Copyright 2010 Technion - Israel Institute of Technology
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine;
+
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import de.fuberlin.wiwiss.d2rq.algebra.Attribute;
+import de.fuberlin.wiwiss.d2rq.algebra.RelationName;
+
+/**
+ * Traces the executed update statements and the queries that probe the
+ * rows, with their durations and row counts. Each statement is logged as a
+ * line of JSON to the il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.SQLTrace 
+ * log, at INFO level, or at WARN level with "slow":true if it took longer 
+ * than the threshold. The statements that are not slow are logged only if 
+ * the trace is enabled. The file the lines are written to, and its 
+ * rolling, are set in the configuration of the logging, for example for 
+ * log4j:
+ * 
+ * <pre>
+ * log4j.logger.il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.SQLTrace=INFO, sqlTrace
+ * log4j.additivity.il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.SQLTrace=false
+ * log4j.appender.sqlTrace=org.apache.log4j.RollingFileAppender
+ * log4j.appender.sqlTrace.File=sql-trace.log
+ * log4j.appender.sqlTrace.MaxFileSize=10MB
+ * log4j.appender.sqlTrace.MaxBackupIndex=10
+ * log4j.appender.sqlTrace.layout=org.apache.log4j.PatternLayout
+ * log4j.appender.sqlTrace.layout.ConversionPattern=%m%n
+ * </pre>
+ * 
+ * The statements of a JDBC batch are executed together, so each of them is
+ * logged with the duration of the whole batch, its number and its position
+ * in the batch.
+ *
+ * @author Vadim Eisenberg <Vadim.Eisenberg@gmail.com>
+ */
+public class SQLTrace {
+	static private Log log = LogFactory.getLog(SQLTrace.class);
+
+	public static final SQLTrace DISABLED = new SQLTrace(false, 0);
+
+	private static final double NANOSECONDS_PER_MILLISECOND = 1000000.0;
+
+	private final boolean enabled;
+	private final long slowStatementThreshold;
+
+	/**
+	 * @param enabled whether to log all the statements
+	 * @param slowStatementThreshold in milliseconds, the statements that 
+	 * take longer are logged as slow, 0 not to log slow statements 
+	 */
+	public SQLTrace(boolean enabled, long slowStatementThreshold) {
+		this.enabled = enabled;
+		this.slowStatementThreshold = slowStatementThreshold;
+	}
+
+	/**
+	 * @return whether any statement may be logged
+	 */
+	public boolean isActive() {
+		return enabled || slowStatementThreshold > 0;
+	}
+
+	/**
+	 * Traces an executed update statement
+	 * 
+	 * @param statement
+	 * @param duration of the statement, or of its batch, in nanoseconds
+	 * @param updateCounter the number of updated rows reported by JDBC
+	 * @param batch the number of the batch, -1 if not executed in a batch
+	 * @param position the position of the statement in the batch
+	 */
+	public void traceUpdate(UpdateStatement statement, long duration,
+		int updateCounter, int batch, int position) {
+		if (!shouldTrace(duration)) {
+			return;
+		}
+		StringBuilder line = new StringBuilder();
+		appendCommonFields(line, "update", 
+				statement.getUpdateType().toString(), statement.getTable(), 
+				statement.getSqlString(), duration);
+		line.append(",\"rows\":").append(updateCounter);
+		if (batch >= 0) {
+			line.append(",\"batch\":").append(batch);
+			line.append(",\"position\":").append(position);
+		}
+		if (statement.isMerged()) {
+			// a multi-row statement lists the subjects of all its rows
+			line.append(",\"subjects\":[");
+			boolean first = true;
+			for (Map<Attribute, String> subjectValues : 
+				statement.getSubjectValuesOfRows()) {
+				if (!first) {
+					line.append(',');
+				}
+				first = false;
+				appendString(line, String.valueOf(subjectValues));
+			}
+			line.append(']');
+		} else {
+			line.append(",\"subject\":");
+			appendString(line, String.valueOf(statement.getSubjectValues()));
+		}
+		write(line, duration);
+	}
+
+	/**
+	 * Traces a query that probes the rows of a table
+	 * 
+	 * @param table
+	 * @param sql
+	 * @param duration in nanoseconds
+	 * @param numberOfRows the number of rows read
+	 */
+	public void traceQuery(RelationName table, String sql, long duration,
+		int numberOfRows) {
+		if (!shouldTrace(duration)) {
+			return;
+		}
+		StringBuilder line = new StringBuilder();
+		appendCommonFields(line, "query", "SELECT", table, sql, duration);
+		line.append(",\"rows\":").append(numberOfRows);
+		write(line, duration);
+	}
+
+	private boolean shouldTrace(long duration) {
+		return (enabled && log.isInfoEnabled()) || 
+			(isSlow(duration) && log.isWarnEnabled());
+	}
+
+	private boolean isSlow(long duration) {
+		return slowStatementThreshold > 0 && 
+			duration > slowStatementThreshold * NANOSECONDS_PER_MILLISECOND;
+	}
+
+	private void appendCommonFields(StringBuilder line, String kind, 
+		String operation, RelationName table, String sql, long duration) {
+		line.append("{\"timestamp\":").append(System.currentTimeMillis());
+		line.append(",\"kind\":\"").append(kind).append('"');
+		line.append(",\"operation\":");
+		appendString(line, operation);
+		line.append(",\"table\":");
+		appendString(line, table == null ? null : table.qualifiedName());
+		line.append(",\"sql\":");
+		appendString(line, sql);
+		line.append(",\"elapsed\":").append(
+				duration / NANOSECONDS_PER_MILLISECOND);
+	}
+
+	private void write(StringBuilder line, long duration) {
+		boolean slow = isSlow(duration);
+		line.append(",\"slow\":").append(slow).append('}');
+		if (slow) {
+			log.warn(line);
+		}
+		else {
+			log.info(line);
+		}
+	}
+
+	private static void appendString(StringBuilder line, String value) {
+		if (value == null) {
+			line.append("null");
+			return;
+		}
+		line.append('"');
+		for (int index = 0; index < value.length(); index++) {
+			char character = value.charAt(index);
+			switch (character) {
+			case '"':
+				line.append("\\\"");
+				break;
+			case '\\':
+				line.append("\\\\");
+				break;
+			case '\n':
+				line.append("\\n");
+				break;
+			case '\r':
+				line.append("\\r");
+				break;
+			case '\t':
+				line.append("\\t");
+				break;
+			default:
+				if (character < 0x20) {
+					line.append(String.format("\\u%04x", (int) character));
+				}
+				else {
+					line.append(character);
+				}
+			}
+		}
+		line.append('"');
+	}
+}
@@ -0,0 +1,41 @@
+/*
+   Copyright 2010 Technion - Israel Institute of Technology
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine;
+
+import java.sql.Connection;
+
+import de.fuberlin.wiwiss.d2rq.sql.ConnectedDB;
+
+/**
+ * Provides the single connection of the mapping, which is shared by all the
+ * updates and the queries of the database. This is the default provider.
+ *
+ * @author Vadim Eisenberg <Vadim.Eisenberg@gmail.com>
+ */
+public class SharedConnectionProvider implements ConnectionProvider {
+
+	public Connection getConnection(ConnectedDB database) {
+		return database.connection();
+	}
+
+	public void releaseConnection(ConnectedDB database, Connection connection) {
+		// the connection remains open for the other users of the mapping
+	}
+
+	public void close() {
+		// the connection is closed with the mapping
+	}
+}
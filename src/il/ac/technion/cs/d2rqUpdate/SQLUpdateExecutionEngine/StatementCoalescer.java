@@ -0,0 +1,185 @@
+/*
+   Copyright 2010 Technion - Israel Institute of Technology
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+
+package il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine;
+
+import il.ac.technion.cs.d2rqUpdate.DeleteStatementBuilder;
+import il.ac.technion.cs.d2rqUpdate.InsertStatementBuilder;
+import il.ac.technion.cs.d2rqUpdate.StatementBuilder;
+import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.UpdateStatement.Type;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jgrapht.DirectedGraph;
+import org.jgrapht.graph.DefaultEdge;
+
+import de.fuberlin.wiwiss.d2rq.algebra.Attribute;
+import de.fuberlin.wiwiss.d2rq.sql.ConnectedDB;
+
+/**
+ * Merges adjacent statements of a topologically sorted list of statements
+ * into fewer statements: consecutive INSERTs into the same table with the
+ * same columns become a single multi-row INSERT, and consecutive DELETEs 
+ * from the same table by conditions of the same shape become a single 
+ * DELETE of all their rows. Only adjacent statements are merged, so the 
+ * order of the merged statements relatively to the other statements is 
+ * kept. The order of the rows inside a merged statement is not kept: the 
+ * database may check the foreign keys row by row in any order (e.g. InnoDB
+ * in the order of the index), so a statement that depends on a statement 
+ * of the current run, e.g. the DELETE of a parent row after the DELETE of 
+ * its child row in a self-referencing table, starts a new run. The minimal 
+ * number of rows updated by a merged statement is the sum of those of its
+ * statements.
+ *
+ * @author Vadim Eisenberg <Vadim.Eisenberg@gmail.com>
+ */
+class StatementCoalescer {
+	static private Log log = LogFactory.getLog(StatementCoalescer.class);
+
+	private final int maxRowsPerInsert;
+	private final int maxRowsPerDelete;
+
+	StatementCoalescer(int maxRowsPerInsert, int maxRowsPerDelete) {
+		this.maxRowsPerInsert = maxRowsPerInsert;
+		this.maxRowsPerDelete = maxRowsPerDelete;
+	}
+
+	/**
+	 * @param sortedStatements the statements, topologically sorted by the
+	 * dependency graph
+	 * @param dependencyGraph the dependencies between the statements
+	 */
+	List<UpdateStatement> coalesce(List<UpdateStatement> sortedStatements,
+		DirectedGraph<UpdateStatement, DefaultEdge> dependencyGraph) {
+		if (maxRowsPerInsert < 2 && maxRowsPerDelete < 2 || 
+				sortedStatements.size() < 2) {
+			return sortedStatements;
+		}
+
+		List<UpdateStatement> coalescedStatements =
+			new ArrayList<UpdateStatement>(sortedStatements.size());
+		List<UpdateStatement> run = new ArrayList<UpdateStatement>();
+		Set<UpdateStatement> statementsOfRun = new HashSet<UpdateStatement>();
+
+		for (UpdateStatement statement : sortedStatements) {
+			if (!run.isEmpty() &&
+					(!haveTheSameShape(run.get(0), statement) ||
+					 run.size() >= getMaximalRunSize(run.get(0)) ||
+					 dependsOn(dependencyGraph, statement, statementsOfRun))) {
+				coalescedStatements.add(merge(run));
+				run.clear();
+				statementsOfRun.clear();
+			}
+			if (canBeMerged(statement)) {
+				run.add(statement);
+				statementsOfRun.add(statement);
+			} else {
+				coalescedStatements.add(statement);
+			}
+		}
+		if (!run.isEmpty()) {
+			coalescedStatements.add(merge(run));
+		}
+
+		log.debug("coalesced " + sortedStatements.size() + " statements into "
+				+ coalescedStatements.size());
+		return coalescedStatements;
+	}
+
+	/**
+	 * @return whether the statement must be executed after one of the 
+	 * statements
+	 */
+	private static boolean dependsOn(
+		DirectedGraph<UpdateStatement, DefaultEdge> dependencyGraph,
+		UpdateStatement statement, Set<UpdateStatement> statements) {
+		for (DefaultEdge edge : dependencyGraph.incomingEdgesOf(statement)) {
+			if (statements.contains(dependencyGraph.getEdgeSource(edge))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return whether the statement is a DELETE, or an INSERT into a 
+	 * database that supports multi-row INSERTs
+	 */
+	private boolean canBeMerged(UpdateStatement statement) {
+		if (statement.getUpdateType() == Type.DELETE) {
+			return maxRowsPerDelete > 1;
+		}
+		return statement.getUpdateType() == Type.INSERT &&
+			maxRowsPerInsert > 1 &&
+			!statement.getDatabase().dbTypeIs(ConnectedDB.Oracle);
+	}
+
+	private int getMaximalRunSize(UpdateStatement statement) {
+		return statement.getUpdateType() == Type.DELETE ? 
+				maxRowsPerDelete : maxRowsPerInsert;
+	}
+
+	private boolean haveTheSameShape(UpdateStatement statement1,
+		UpdateStatement statement2) {
+		return statement1.getDatabase().equals(statement2.getDatabase()) &&
+			statement1.getSqlTemplate().equals(statement2.getSqlTemplate());
+	}
+
+	private UpdateStatement merge(List<UpdateStatement> statements) {
+		UpdateStatement first = statements.get(0);
+		if (statements.size() == 1) {
+			return first;
+		}
+
+		// equal templates mean the same table and the same columns (the 
+		// inserted columns, or the columns of the DELETE condition)
+		List<Attribute> columns =
+			new ArrayList<Attribute>(first.getUpdatedAttributes().keySet());
+		List<Map<Attribute, String>> rows =
+			new ArrayList<Map<Attribute,String>>(statements.size());
+		List<Map<Attribute, String>> subjectValues =
+			new ArrayList<Map<Attribute,String>>(statements.size());
+		int minimalNumberOfUpdatedRows = 0;
+		for (UpdateStatement statement : statements) {
+			rows.add(statement.getUpdatedAttributes());
+			subjectValues.add(statement.getSubjectValues());
+			minimalNumberOfUpdatedRows +=
+				statement.getMinimalNumberOfUpdatedRows();
+		}
+
+		StatementBuilder builder = first.getUpdateType() == Type.DELETE ?
+				new DeleteStatementBuilder(first.getTable(), 
+						first.getDatabase(), columns, rows) :
+				new InsertStatementBuilder(first.getTable(), 
+						first.getDatabase(), columns, rows);
+		List<String> parameters = new ArrayList<String>();
+		String sqlTemplate = builder.getSQLTemplate(parameters);
+
+		// the merged statement does not take part in the dependency analysis,
+		// which is already done
+		return new UpdateStatement(first.getDatabase(), first.getTable(),
+				builder.getSQLStatement(), sqlTemplate, parameters,
+				minimalNumberOfUpdatedRows, first.getUpdateType(),
+				subjectValues);
+	}
+}
@@ -0,0 +1,209 @@
+/*
+   Copyright 2010 Technion - Israel Institute of Technology
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import de.fuberlin.wiwiss.d2rq.D2RQException;
+import de.fuberlin.wiwiss.d2rq.sql.ConnectedDB;
+
+/**
+ * The connections the update of the current thread is executed on. An 
+ * update is enclosed by begin() and end(): the first time a database is used
+ * by the update, a connection to it is checked out from the provider of the
+ * update, and all the connections are released by the outermost end(). The
+ * scopes may be nested, e.g. a SPARQL Update request encloses all its 
+ * operations; the provider of the outermost scope is used. Outside a scope,
+ * the connection of the mapping is used.
+ * 
+ * A scope begun by beginTransaction() is also a transaction: the 
+ * connections are checked out with auto-commit off, the updates inside it
+ * do not commit, and the outermost end() commits all the connections, or
+ * rolls them back if setRollbackOnly() was called.
+ *
+ * @author Vadim Eisenberg <Vadim.Eisenberg@gmail.com>
+ */
+public final class UpdateConnections {
+	static private Log log = LogFactory.getLog(UpdateConnections.class);
+
+	private static final ThreadLocal<UpdateConnections> current =
+		new ThreadLocal<UpdateConnections>();
+
+	private final ConnectionProvider provider;
+	private final Map<ConnectedDB, Connection> connections =
+		new LinkedHashMap<ConnectedDB, Connection>();
+	private int depth = 0;
+	private final boolean transaction;
+	private boolean rollbackOnly = false;
+
+	private UpdateConnections(ConnectionProvider provider, 
+		boolean transaction) {
+		this.provider = provider;
+		this.transaction = transaction;
+	}
+
+	/**
+	 * @param provider the provider of the connections, if this is the 
+	 * outermost scope
+	 */
+	public static void begin(ConnectionProvider provider) {
+		begin(provider, false);
+	}
+
+	/**
+	 * Begins a scope that is committed as a whole by the outermost end(),
+	 * if this is the outermost scope
+	 * 
+	 * @param provider the provider of the connections, if this is the 
+	 * outermost scope
+	 */
+	public static void beginTransaction(ConnectionProvider provider) {
+		begin(provider, true);
+	}
+
+	private static void begin(ConnectionProvider provider, 
+		boolean transaction) {
+		UpdateConnections scope = current.get();
+		if (scope == null) {
+			scope = new UpdateConnections(provider, transaction);
+			current.set(scope);
+		}
+		scope.depth++;
+	}
+
+	/**
+	 * Ends the scope, the outermost scope commits or rolls back the 
+	 * transaction, if it is one, and releases the connections
+	 * 
+	 * @throws D2RQException if the transaction could not be committed, it 
+	 * is rolled back then
+	 */
+	public static void end() {
+		UpdateConnections scope = current.get();
+		if (scope == null) {
+			throw new IllegalStateException("end() without begin()");
+		}
+		if (--scope.depth > 0) {
+			return;
+		}
+		current.remove();
+		try {
+			if (scope.transaction) {
+				scope.finishTransaction();
+			}
+		}
+		finally {
+			for (Map.Entry<ConnectedDB, Connection> entry : 
+				scope.connections.entrySet()) {
+				scope.provider.releaseConnection(entry.getKey(), 
+						entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * @return whether the current update is inside a transaction that is 
+	 * committed by the outermost end()
+	 */
+	public static boolean isInTransaction() {
+		UpdateConnections scope = current.get();
+		return scope != null && scope.transaction;
+	}
+
+	/**
+	 * Marks the transaction of the current update, if there is one, to be 
+	 * rolled back by the outermost end()
+	 */
+	public static void setRollbackOnly() {
+		UpdateConnections scope = current.get();
+		if (scope != null) {
+			scope.rollbackOnly = true;
+		}
+	}
+
+	private void finishTransaction() {
+		SQLException failure = null;
+		for (Connection connection : connections.values()) {
+			try {
+				if (rollbackOnly || failure != null) {
+					connection.rollback();
+				} else {
+					connection.commit();
+				}
+			} catch (SQLException exception) {
+				if (failure == null) {
+					failure = exception;
+				}
+				log.warn(exception);
+				rollback(connection);
+			}
+			try {
+				connection.setAutoCommit(true);
+			} catch (SQLException exception) {
+				log.warn(exception);
+			}
+		}
+		if (failure != null) {
+			if (connections.size() > 1) {
+				log.error("the request may be committed partially: the " +
+						"commit of one of its connections failed");
+			}
+			throw new D2RQException(failure);
+		}
+	}
+
+	private static void rollback(Connection connection) {
+		try {
+			connection.rollback();
+		} catch (SQLException exception) {
+			log.warn(exception);
+		}
+	}
+
+	/**
+	 * @return the connection of the current update to the database
+	 */
+	public static Connection get(ConnectedDB database) {
+		UpdateConnections scope = current.get();
+		if (scope == null) {
+			return database.connection();
+		}
+		Connection connection = scope.connections.get(database);
+		if (connection == null) {
+			try {
+				connection = scope.provider.getConnection(database);
+			} catch (SQLException exception) {
+				throw new D2RQException(exception);
+			}
+			if (scope.transaction) {
+				try {
+					connection.setAutoCommit(false);
+				} catch (SQLException exception) {
+					scope.provider.releaseConnection(database, connection);
+					throw new D2RQException(exception);
+				}
+			}
+			scope.connections.put(database, connection);
+		}
+		return connection;
+	}
+}
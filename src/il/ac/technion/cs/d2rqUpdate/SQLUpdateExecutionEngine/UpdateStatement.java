@@ -17,6 +17,10 @@
 
 package il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine;
 
+import il.ac.technion.cs.d2rqUpdate.AttributeValues;
+
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import de.fuberlin.wiwiss.d2rq.algebra.Attribute;
@@ -36,29 +40,13 @@ public class UpdateStatement {
 				+ ", minimalNumberOfUpdatedRows=" + minimalNumberOfUpdatedRows
 				+ ", sqlString=" + sqlString + ", table=" + table
 				+ ", updateType=" + updateType + ", updatedAttributes="
-				+ updatedAttributes + "]";
+				+ updatedAttributes + ", subjectValues="
+				+ (isMerged() ? mergedSubjectValues : subjectValues) + "]";
 	}
 
 	@Override
 	public int hashCode() {
-		final int prime = 31;
-		int result = 1;
-		result =
-				prime * result + ((database == null) ? 0 : database.hashCode());
-		result = prime * result + minimalNumberOfUpdatedRows;
-		result =
-				prime * result
-						+ ((sqlString == null) ? 0 : sqlString.hashCode());
-		result = prime * result + ((table == null) ? 0 : table.hashCode());
-		result =
-				prime * result
-						+ ((updateType == null) ? 0 : updateType.hashCode());
-		result =
-				prime
-						* result
-						+ ((updatedAttributes == null) ? 0 : updatedAttributes
-								.hashCode());
-		return result;
+		return hash;
 	}
 
 	@Override
@@ -73,6 +61,9 @@ public class UpdateStatement {
 			return false;
 		}
 		UpdateStatement other = (UpdateStatement) obj;
+		if (hash != other.hash) {
+			return false;
+		}
 		if (database == null) {
 			if (other.database != null) {
 				return false;
@@ -117,6 +108,9 @@ public class UpdateStatement {
 	public enum Type {
 		INSERT,
 
+		/** an INSERT, or an UPDATE if the row exists */
+		UPSERT,
+
 		UPDATE_TO_NON_NULL_VALUE {
 			@Override
 			public String toString() {
@@ -138,9 +132,15 @@ public class UpdateStatement {
 	private final RelationName table;
 	private final Map<Attribute,String> updatedAttributes;
 	private final String sqlString;
+	private final String sqlTemplate;
+	private final List<String> parameters;
 	private final int minimalNumberOfUpdatedRows;
 	private final Type updateType;
 	private final Map<Attribute, String> subjectValues;
+	// the subject values of the rows of the statements merged into this 
+	// statement, null if the statement is not merged
+	private final List<Map<Attribute, String>> mergedSubjectValues;
+	private final int hash;
 
 	
 	public UpdateStatement(ConnectedDB database,
@@ -149,15 +149,95 @@ public class UpdateStatement {
 		int minimalNumberOfUpdatedRows, 
 		Type updateType,
 		Map<Attribute, String> subjectValues) {
+		this(database, table, updatedAttributes, sqlString, sqlString,
+				Collections.<String>emptyList(), minimalNumberOfUpdatedRows,
+				updateType, subjectValues);
+	}
+	
+	/**
+	 * @param sqlString the statement with the values inlined, for logging
+	 * @param sqlTemplate the statement with parameter markers, to be prepared
+	 * @param parameters the SQL literals to bind to the parameter markers
+	 */
+	public UpdateStatement(ConnectedDB database,
+		RelationName table,
+		Map<Attribute,String> updatedAttributes, String sqlString,
+		String sqlTemplate, List<String> parameters,
+		int minimalNumberOfUpdatedRows, 
+		Type updateType,
+		Map<Attribute, String> subjectValues) {
+		this(database, table, updatedAttributes, sqlString, sqlTemplate,
+				parameters, minimalNumberOfUpdatedRows, updateType, 
+				subjectValues, null);
+	}
+	
+	/**
+	 * A statement merged from the statements of several rows. It does not 
+	 * take part in the dependency analysis, which is done before the 
+	 * statements are merged, so it has no updated attributes.
+	 * 
+	 * @param mergedSubjectValues the subject values of the merged 
+	 * statements, in their order, to tell which rows the statement writes
+	 */
+	public UpdateStatement(ConnectedDB database,
+		RelationName table, String sqlString,
+		String sqlTemplate, List<String> parameters,
+		int minimalNumberOfUpdatedRows, 
+		Type updateType,
+		List<Map<Attribute, String>> mergedSubjectValues) {
+		this(database, table, Collections.<Attribute, String>emptyMap(), 
+				sqlString, sqlTemplate, parameters, 
+				minimalNumberOfUpdatedRows, updateType, 
+				Collections.<Attribute, String>emptyMap(), 
+				Collections.unmodifiableList(mergedSubjectValues));
+	}
+	
+	private UpdateStatement(ConnectedDB database,
+		RelationName table,
+		Map<Attribute,String> updatedAttributes, String sqlString,
+		String sqlTemplate, List<String> parameters,
+		int minimalNumberOfUpdatedRows, 
+		Type updateType,
+		Map<Attribute, String> subjectValues,
+		List<Map<Attribute, String>> mergedSubjectValues) {
 		this.database = database;
 		this.table = table;
-		this.updatedAttributes = updatedAttributes;
+		this.updatedAttributes = AttributeValues.copyOf(updatedAttributes);
 		this.sqlString = sqlString;
+		this.sqlTemplate = sqlTemplate;
+		this.parameters = Collections.unmodifiableList(parameters);
 		this.minimalNumberOfUpdatedRows = minimalNumberOfUpdatedRows;
 		this.updateType = updateType;
-		this.subjectValues = subjectValues;
+		this.subjectValues = subjectValues == null ? null : 
+			AttributeValues.copyOf(subjectValues);
+		this.mergedSubjectValues = mergedSubjectValues;
+		this.hash = computeHashCode();
+	}
+	
+	// the statements are the vertices of the dependency graph and are kept 
+	// in hash maps while they are sorted, so the hash is computed once
+	private int computeHashCode() {
+		final int prime = 31;
+		int result = 1;
+		result =
+				prime * result + ((database == null) ? 0 : database.hashCode());
+		result = prime * result + minimalNumberOfUpdatedRows;
+		result =
+				prime * result
+						+ ((sqlString == null) ? 0 : sqlString.hashCode());
+		result = prime * result + ((table == null) ? 0 : table.hashCode());
+		result =
+				prime * result
+						+ ((updateType == null) ? 0 : updateType.hashCode());
+		result = prime * result + updatedAttributes.hashCode();
+		return result;
 	}
 
+	/**
+	 * @return the columns set by the statement and their new values. An 
+	 * UPDATE TO NULL may set several columns of a row to NULL, each only if
+	 * it has its deleted value, so the dependencies are computed per column
+	 */
 	public Map<Attribute,String> getUpdatedAttributes() {
 		return updatedAttributes;
 	}
@@ -166,6 +246,14 @@ public class UpdateStatement {
 		return sqlString;
 	}
 
+	public String getSqlTemplate() {
+		return sqlTemplate;
+	}
+
+	public List<String> getParameters() {
+		return parameters;
+	}
+
 	public ConnectedDB getDatabase() {
 		return database;
 	}
@@ -185,9 +273,28 @@ public class UpdateStatement {
 	}
 
 	/**
-	 * @return
+	 * @return the subject values of the row of the statement, empty if the
+	 * statement is merged
 	 */
 	public Map<Attribute, String> getSubjectValues() {
 		return subjectValues;
 	}
+
+	/**
+	 * @return whether the statement was merged from several statements
+	 */
+	public boolean isMerged() {
+		return mergedSubjectValues != null;
+	}
+
+	/**
+	 * @return the subject values of the rows written by the statement: of 
+	 * each merged statement, or of its single row
+	 */
+	public List<Map<Attribute, String>> getSubjectValuesOfRows() {
+		if (isMerged()) {
+			return mergedSubjectValues;
+		}
+		return Collections.singletonList(subjectValues);
+	}
 }
@@ -0,0 +1,136 @@
+/*
+   Copyright 2010 Technion - Israel Institute of Technology
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package il.ac.technion.cs.d2rqUpdate;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import de.fuberlin.wiwiss.d2rq.algebra.Attribute;
+import de.fuberlin.wiwiss.d2rq.algebra.RelationName;
+import de.fuberlin.wiwiss.d2rq.dbschema.DatabaseSchemaInspector;
+import de.fuberlin.wiwiss.d2rq.sql.ConnectedDB;
+
+/**
+ * Caches the schema metadata of a database: the primary keys, the columns,
+ * their nullability and the link table status of the tables. Each of them
+ * is read from the DatabaseMetaData once, on the first use, by
+ * DatabaseSchemaInspector. The cache is shared by all the updates of a
+ * database, clear() should be called if the schema is changed.
+ *
+ * @author Vadim Eisenberg <Vadim.Eisenberg@gmail.com>
+ */
+public class SchemaMetadataCache {
+	static private Log log = LogFactory.getLog(SchemaMetadataCache.class);
+
+	private static final Map<ConnectedDB, SchemaMetadataCache> caches =
+		new WeakHashMap<ConnectedDB, SchemaMetadataCache>();
+
+	private final ConnectedDB database;
+	private DatabaseSchemaInspector inspector = null;
+
+	private final Map<RelationName, List<Attribute>> primaryKeys =
+		new HashMap<RelationName, List<Attribute>>();
+	private final Map<RelationName, List<Attribute>> columns =
+		new HashMap<RelationName, List<Attribute>>();
+	private final Map<Attribute, Boolean> nullables =
+		new HashMap<Attribute, Boolean>();
+	private final Map<RelationName, Boolean> linkTables =
+		new HashMap<RelationName, Boolean>();
+
+	private SchemaMetadataCache(ConnectedDB database) {
+		this.database = database;
+	}
+
+	public static synchronized SchemaMetadataCache get(ConnectedDB database) {
+		SchemaMetadataCache cache = caches.get(database);
+		if (cache == null) {
+			cache = new SchemaMetadataCache(database);
+			caches.put(database, cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * @return the primary key columns of the table, the list is unmodifiable
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized List<Attribute> primaryKeyColumns(RelationName table) {
+		List<Attribute> result = primaryKeys.get(table);
+		if (result == null) {
+			result = Collections.unmodifiableList(
+					inspector().primaryKeyColumns(table));
+			primaryKeys.put(table, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the columns of the table, the list is unmodifiable
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized List<Attribute> listColumns(RelationName table) {
+		List<Attribute> result = columns.get(table);
+		if (result == null) {
+			result = Collections.unmodifiableList(
+					inspector().listColumns(table));
+			columns.put(table, result);
+		}
+		return result;
+	}
+
+	public synchronized boolean isNullable(Attribute column) {
+		Boolean result = nullables.get(column);
+		if (result == null) {
+			result = Boolean.valueOf(inspector().isNullable(column));
+			nullables.put(column, result);
+		}
+		return result.booleanValue();
+	}
+
+	public synchronized boolean isLinkTable(RelationName table) {
+		Boolean result = linkTables.get(table);
+		if (result == null) {
+			result = Boolean.valueOf(inspector().isLinkTable(table));
+			linkTables.put(table, result);
+		}
+		return result.booleanValue();
+	}
+
+	/**
+	 * Forgets the cached metadata, to be called after the schema is changed
+	 */
+	public synchronized void clear() {
+		primaryKeys.clear();
+		columns.clear();
+		nullables.clear();
+		linkTables.clear();
+	}
+
+	private DatabaseSchemaInspector inspector() {
+		if (inspector == null) {
+			log.debug("reading the schema of " + database.getJdbcURL());
+			inspector = new DatabaseSchemaInspector(database);
+		}
+		return inspector;
+	}
+}
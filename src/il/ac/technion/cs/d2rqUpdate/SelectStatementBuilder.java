@@ -42,8 +42,10 @@ public class SelectStatementBuilder extends StatementBuilder {
 	}
 	
 	@Override
-	public String getSQLStatement() {		
-		StringBuffer result = new StringBuffer("SELECT ");
+	protected String buildSQLStatement() {		
+		StringBuilder result = 
+			createBuffer(selectColumns.size() + conditionValues.size());
+		result.append("SELECT ");
 		
 		appendSelectColumns(result, selectColumns, true);
 		
@@ -56,7 +58,7 @@ public class SelectStatementBuilder extends StatementBuilder {
 		return result.toString();
 	}
 
-	private void appendSelectColumns(StringBuffer result,
+	private void appendSelectColumns(StringBuilder result,
 		Set<Attribute> selectColumns, boolean qualified) {
 		if(selectColumns.size() == 0) {
 			result.append("*");
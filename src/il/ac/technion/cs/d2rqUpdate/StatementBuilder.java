@@ -15,12 +15,12 @@
 */
 
 package il.ac.technion.cs.d2rqUpdate;
-import java.util.HashSet;
+import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.SQLLiteral;
+
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import de.fuberlin.wiwiss.d2rq.algebra.AliasMap;
 import de.fuberlin.wiwiss.d2rq.algebra.Attribute;
 import de.fuberlin.wiwiss.d2rq.algebra.RelationName;
 import de.fuberlin.wiwiss.d2rq.sql.ConnectedDB;
@@ -36,26 +36,33 @@ public abstract class StatementBuilder {
 	// http://ssdl-wiki.cs.technion.ac.il/wiki/index.php/Class_Separator
 	final static class Separator {
 	    boolean first = true;
-	    String separatorString;
+	    final String separatorString;
 	    
 	    Separator(String separatorString) {
-	    	this.separatorString = separatorString;
+	    	this.separatorString = separatorString + " ";
 	    }
 	  
 	    @Override
 		public String toString() {
 	        if (!first) 
 	        {
-	            return separatorString + " ";
+	            return separatorString;
 	        }
 	        first = false;
 	        return "";
 	    }
 	}
 	
+	private static final int INITIAL_CAPACITY = 64;
+	private static final int CAPACITY_PER_TERM = 32;
+	
 	private final RelationName table;
 	private final ConnectedDB database;
 	
+	// the values replaced by parameter markers while building a template, 
+	// null while building a plain SQL statement
+	private List<String> parameters = null;
+	
 	
 	protected ConnectedDB getDatabase() {
 		return database;
@@ -68,53 +75,140 @@ public abstract class StatementBuilder {
 	}
 	
 	protected String quoteRelationName(RelationName name){
-		return database.quoteRelationName(name);
+		return QuotedIdentifiers.get(database).table(name);
+	}
+	
+	/**
+	 * @return the unqualified columns separated by commas, cached per 
+	 * database
+	 */
+	protected String columnList(List<Attribute> columns) {
+		return QuotedIdentifiers.get(database).columnList(columns);
 	}
 
 	public RelationName getTable() {
 		return table;
 	}
 	
-	abstract public String getSQLStatement();
+	/**
+	 * @return the SQL statement with all the values inlined as SQL literals
+	 */
+	public String getSQLStatement() {
+		parameters = null;
+		return buildSQLStatement();
+	}
+	
+	/**
+	 * Builds the SQL statement as a template for a PreparedStatement: the 
+	 * values that can be bound are replaced by parameter markers. Statements
+	 * that differ only in such values share the same template.
+	 * 
+	 * @param parameters receives the SQL literals of the replaced values, in 
+	 * the order of their parameter markers
+	 * @return the SQL template
+	 */
+	public String getSQLTemplate(List<String> parameters) {
+		this.parameters = parameters;
+		try {
+			return buildSQLStatement();
+		}
+		finally {
+			this.parameters = null;
+		}
+	}
+	
+	abstract protected String buildSQLStatement();
+	
+	/**
+	 * @param value an SQL literal
+	 * @return the literal itself or a parameter marker, if a template is 
+	 * being built and the literal can be bound
+	 */
+	protected String valueToSQL(String value) {
+		if (parameters == null || !SQLLiteral.isBindable(value)) {
+			return value;
+		}
+		parameters.add(value);
+		return "?";
+	}
 
 
-	protected void appendSeparatedEqualities(StringBuffer result, 
+	/**
+	 * @param numberOfTerms the number of the columns and values of the
+	 * statement
+	 * @return a buffer large enough for most of the statements with the 
+	 * given number of terms
+	 */
+	protected static StringBuilder createBuffer(int numberOfTerms) {
+		return new StringBuilder(INITIAL_CAPACITY + 
+				numberOfTerms * CAPACITY_PER_TERM);
+	}
+
+	protected void appendSeparatedEqualities(StringBuilder result, 
 											 Map<Attribute, String> values,
 											 String separatorString,
 											 boolean qualified) {
-		Set<Attribute> keys = values.keySet();
 		Separator separator = new Separator(separatorString);
-		for (Attribute key: keys) {
-			appendSeparatedEquality(result, key, values.get(key), separator,
-					qualified);
+		for (Map.Entry<Attribute, String> entry : values.entrySet()) {
+			appendSeparatedEquality(result, entry.getKey(), entry.getValue(), 
+					separator, qualified);
 		}
 	}
 	
-	protected void appendSeparatedAssignments(StringBuffer result,
+	/**
+	 * @deprecated use {@link #appendSeparatedEqualities(StringBuilder, Map, 
+	 * String, boolean)}
+	 */
+	@Deprecated
+	protected void appendSeparatedEqualities(StringBuffer result, 
+		Map<Attribute, String> values, String separatorString,
+		boolean qualified) {
+		StringBuilder builder = createBuffer(values.size());
+		appendSeparatedEqualities(builder, values, separatorString, qualified);
+		result.append(builder);
+	}
+	
+	protected void appendSeparatedAssignments(StringBuilder result,
 		Map<Attribute, String> updateValues, String separatorString,
 		boolean qualified) {
-		Set<Attribute> keys = updateValues.keySet();
 		Separator separator = new Separator(separatorString);
-		for (Attribute key : keys) {
-			appendSeparatedAssignment(result, toSQL(key,getDatabase(),qualified) 
-					, updateValues.get(key), separator);
+		for (Map.Entry<Attribute, String> entry : updateValues.entrySet()) {
+			appendSeparatedAssignment(result, 
+					toSQL(entry.getKey(), getDatabase(), qualified), 
+					valueToSQL(entry.getValue()), separator);
 		}
 	}
 	
-	private void appendSeparatedEquality(StringBuffer result, 
+	/**
+	 * @deprecated use {@link #appendSeparatedAssignments(StringBuilder, Map, 
+	 * String, boolean)}
+	 */
+	@Deprecated
+	protected void appendSeparatedAssignments(StringBuffer result,
+		Map<Attribute, String> updateValues, String separatorString,
+		boolean qualified) {
+		StringBuilder builder = createBuffer(updateValues.size());
+		appendSeparatedAssignments(builder, updateValues, separatorString, 
+				qualified);
+		result.append(builder);
+	}
+	
+	private void appendSeparatedEquality(StringBuilder result, 
 		Attribute attribute, String value, Separator separator, 
 		boolean qualified) {
-		String equality = value.equals("NULL") ? "IS" : "=";
-		result.append(separator + toSQL(attribute, getDatabase(),qualified) 
-				 + " " + equality + " " + value + " ");
+		result.append(separator)
+			.append(toSQL(attribute, getDatabase(), qualified))
+			.append(value.equals("NULL") ? " IS " : " = ")
+			.append(valueToSQL(value)).append(' ');
 	}
 	
-	private void appendSeparatedAssignment(StringBuffer result, String key,
+	private void appendSeparatedAssignment(StringBuilder result, String key,
 		String value, Separator separator) {
-		result.append(separator + key + " = " + value + " ");
+		result.append(separator).append(key).append(" = ").append(value)
+			.append(' ');
 	}
 	
-	protected void appendSeparatedEqualities(StringBuffer result, 
+	protected void appendSeparatedEqualities(StringBuilder result, 
 		Attribute attribute,
 		List<String> values, String separatorString, boolean qualified) {
 		
@@ -125,15 +219,41 @@ public abstract class StatementBuilder {
 		}
 	}
 	
-	public static void appendSeparatedStrings(StringBuffer result,
+	/**
+	 * @deprecated use {@link #appendSeparatedEqualities(StringBuilder, 
+	 * Attribute, List, String, boolean)}
+	 */
+	@Deprecated
+	protected void appendSeparatedEqualities(StringBuffer result, 
+		Attribute attribute,
+		List<String> values, String separatorString, boolean qualified) {
+		StringBuilder builder = createBuffer(values.size());
+		appendSeparatedEqualities(builder, attribute, values, separatorString,
+				qualified);
+		result.append(builder);
+	}
+	
+	public static void appendSeparatedStrings(StringBuilder result,
 		Set<Attribute> columns,String separatorString, ConnectedDB database,
 		boolean qualified) {
-		Set<String> columnNames = new HashSet<String>(columns.size());
+		Separator separator = new Separator(separatorString);
 		for (Attribute column : columns){
-			columnNames.add(toSQL(column,database,qualified));
+			result.append(separator).append(toSQL(column,database,qualified));
 		}
-		appendSeparatedStrings(result, columnNames.toArray(new String[]{}), 
-				separatorString);
+	}
+
+	/**
+	 * @deprecated use {@link #appendSeparatedStrings(StringBuilder, Set, 
+	 * String, ConnectedDB, boolean)}
+	 */
+	@Deprecated
+	public static void appendSeparatedStrings(StringBuffer result,
+		Set<Attribute> columns,String separatorString, ConnectedDB database,
+		boolean qualified) {
+		StringBuilder builder = createBuffer(columns.size());
+		appendSeparatedStrings(builder, columns, separatorString, database,
+				qualified);
+		result.append(builder);
 	}
 
 	/**
@@ -141,37 +261,57 @@ public abstract class StatementBuilder {
 	 * @param values
 	 * @param separatorString
 	 */
-	public static void appendSeparatedStrings(StringBuffer result,
+	public static void appendSeparatedStrings(StringBuilder result,
 		String[] values, String separatorString) {
 		Separator separator = new Separator(separatorString);
 		for (String value : values) {
-			result.append(separator + value);
+			result.append(separator).append(value);
 		}
 		
 	}
 
+	/**
+	 * @deprecated use {@link #appendSeparatedStrings(StringBuilder, String[], 
+	 * String)}
+	 */
+	@Deprecated
+	public static void appendSeparatedStrings(StringBuffer result,
+		String[] values, String separatorString) {
+		StringBuilder builder = createBuffer(values.length);
+		appendSeparatedStrings(builder, values, separatorString);
+		result.append(builder);
+	}
+
 	/**
 	 * @param tripleString
 	 * @param triples
 	 * @param separatorString
 	 */
+	public static void appendSeparatedStrings(StringBuilder result,
+		List<String> triples, String separatorString) {
+		Separator separator = new Separator(separatorString);
+		for (String triple : triples) {
+			result.append(separator).append(triple);
+		}
+	}
+
+	/**
+	 * @deprecated use {@link #appendSeparatedStrings(StringBuilder, List, 
+	 * String)}
+	 */
+	@Deprecated
 	public static void appendSeparatedStrings(StringBuffer result,
 		List<String> triples, String separatorString) {
-		appendSeparatedStrings(result, triples.toArray(new String[]{}), 
-				separatorString);
-		
+		StringBuilder builder = createBuffer(triples.size());
+		appendSeparatedStrings(builder, triples, separatorString);
+		result.append(builder);
 	}
 	
+	/**
+	 * @return the quoted column, cached per database
+	 */
 	public static String toSQL(Attribute attribute, ConnectedDB database, 
 		boolean qualified){
-		if (qualified) {
-			return attribute.toSQL(database, AliasMap.NO_ALIASES);
-		}
-		// MySQL uses backticks
-		if (database.dbTypeIs(ConnectedDB.MySQL)) {
-			return database.backtickQuote(attribute.attributeName());
-		}
-		// PostgreSQL and Oracle (and SQL-92) use double quotes
-		return database.doubleQuote(attribute.attributeName());
+		return QuotedIdentifiers.get(database).column(attribute, qualified);
 	}
-}
\ No newline at end of file
+}
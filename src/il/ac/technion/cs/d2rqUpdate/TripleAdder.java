@@ -16,11 +16,14 @@
 
 package il.ac.technion.cs.d2rqUpdate;
 import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.ExecutionEngine;
+import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.UpdateConnections;
 import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.UpdateStatement;
 
 import java.sql.Connection;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -33,8 +36,6 @@ import com.hp.hpl.jena.graph.Triple;
 
 import de.fuberlin.wiwiss.d2rq.algebra.Attribute;
 import de.fuberlin.wiwiss.d2rq.algebra.RelationName;
-import de.fuberlin.wiwiss.d2rq.algebra.TripleRelation;
-import de.fuberlin.wiwiss.d2rq.dbschema.DatabaseSchemaInspector;
 import de.fuberlin.wiwiss.d2rq.sql.ConnectedDB;
 
 /**
@@ -45,9 +46,11 @@ import de.fuberlin.wiwiss.d2rq.sql.ConnectedDB;
 public class TripleAdder extends TripleUpdater {
 	static Log log = LogFactory.getLog(TripleAdder.class);
 
-	public TripleAdder(Collection<Triple> triples,
-			Collection<TripleRelation> propertyBrdidges) {
-		super(triples, propertyBrdidges);
+	private final List<RowToInsertOrUpdate> rowsToInsertOrUpdate = 
+		new ArrayList<RowToInsertOrUpdate>();
+
+	public TripleAdder(Collection<Triple> triples, GraphD2RQUpdate graph) {
+		super(triples, graph);
 	}
 
 	@Override
@@ -58,8 +61,7 @@ public class TripleAdder extends TripleUpdater {
 		
 		log.debug("subjectValues for table = " + table + " : " + subjectValues);
 		log.debug("objectValuesProjectionsPairs = " + objectValuesProjectionsPairs);
-		DatabaseSchemaInspector inspector =
-				new DatabaseSchemaInspector(database);
+		SchemaMetadataCache inspector = SchemaMetadataCache.get(database);
 
 		boolean tableHasPrimaryKeys =
 				!inspector.primaryKeyColumns(table).isEmpty();
@@ -76,42 +78,91 @@ public class TripleAdder extends TripleUpdater {
 					D2RQUpdateException.NOT_IMPLEMENTED);
 		}
 
-		Connection connection = database.connection();
-		
-		
 		if (multipleValuesPerAttributeExist(objectValuesProjectionsPairs)) {
 			for (ObjectValuesProjectionsPair pair : 
 				objectValuesProjectionsPairs) {
 				Map<Attribute, String> objectValues = pair.getObjectValues();
-				executePerSubjectAndObjectValues(engine, database, table,
-						subjectValues, connection, objectValues);
+				executePerSubjectAndObjectValues(database, table,
+						subjectValues, objectValues);
 			}
 		}
 		else {
-			executePerSubjectAndObjectValues(engine, database, table,
-					subjectValues, connection, 
+			executePerSubjectAndObjectValues(database, table,
+					subjectValues, 
 					getObjectValues(objectValuesProjectionsPairs));
 		}
 	}
 
-	private void executePerSubjectAndObjectValues(ExecutionEngine engine,
-		ConnectedDB database, RelationName table,
-		Map<Attribute, String> subjectValues, Connection connection,
+	private void executePerSubjectAndObjectValues(ConnectedDB database, 
+		RelationName table, Map<Attribute, String> subjectValues, 
 		Map<Attribute, String> objectValues) {
 		
 		Map<Attribute, String> values = 
 			new HashMap<Attribute, String>(subjectValues);
 		values.putAll(objectValues);
 
-		if (!doesCorrespondingRowAlreadyExist(database, table, values,
-				connection)) {
-			insertNewRow(engine, database, table, values, subjectValues,
+		// inserted or updated after the existence of all the rows is checked
+		rowsToInsertOrUpdate.add(new RowToInsertOrUpdate(database, table, 
+				subjectValues, 
+				getRowKey(database, table, subjectValues, values),
+				Collections.<Attribute, String>emptyMap(), objectValues));
+	}
+
+	@Override
+	protected void addDeferredStatements(ExecutionEngine engine) {
+		List<RowToInsertOrUpdate> rowsToProbe = 
+			new ArrayList<RowToInsertOrUpdate>();
+		for (RowToInsertOrUpdate row : rowsToInsertOrUpdate) {
+			if (!upsert(engine, row)) {
+				rowsToProbe.add(row);
+			}
+		}
+		
+		RowExistenceProbe probe = probeRowExistence(engine, rowsToProbe);
+		
+		for (RowToInsertOrUpdate row : rowsToProbe) {
+			ConnectedDB database = row.getDatabase();
+			Connection connection = UpdateConnections.get(database);
+			if (!rowExists(engine, probe, row)) {
+				insertNewRow(engine, database, row.getTable(), row.getValues(),
+						row.getSubjectValues(), connection);
+				continue;
+			}
+			updateExistingRow(engine, database, row.getTable(), 
+					row.getSubjectValues(), row.getObjectValuesToAdd(), 
 					connection);
-			return;
 		}
+		rowsToInsertOrUpdate.clear();
+	}
 
-		updateExistingRow(engine, database, table, subjectValues, objectValues,
-				connection);
+	/**
+	 * Inserts or updates the row by a single statement, without checking its
+	 * existence, if the database supports it and the whole primary key of 
+	 * the row is known 
+	 * @return whether the statement was added
+	 */
+	private boolean upsert(ExecutionEngine engine, RowToInsertOrUpdate row) {
+		ConnectedDB database = row.getDatabase();
+		if (!graph.getUpdateConfiguration().getUpsert() || 
+				!UpsertStatementBuilder.supports(database)) {
+			return false;
+		}
+		List<Attribute> primaryKeys = SchemaMetadataCache.get(database).
+			primaryKeyColumns(row.getTable());
+		if (!row.getKey().keySet().containsAll(primaryKeys)) {
+			return false;
+		}
+		
+		UpsertStatementBuilder builder = new UpsertStatementBuilder(
+				row.getTable(), database, primaryKeys, row.getSubjectValues(), 
+				row.getObjectValuesToAdd());
+		UpdateStatement statement = createUpdateStatement(builder, 
+				row.getValues(), builder.getMinimalNumberOfUpdatedRows(),
+				UpdateStatement.Type.UPSERT, row.getSubjectValues());
+		log.debug("upsert sqlString = " + statement.getSqlString());
+		
+		engine.add(statement);
+		return true;
 	}
 
 	private void updateExistingRow(ExecutionEngine engine, ConnectedDB database, 
@@ -125,14 +176,13 @@ public class TripleAdder extends TripleUpdater {
 					objectValues.get(attribute) }));
 		}
 
-		String sqlString =
+		UpdateStatement statement = createUpdateStatement(
 				new UpdateStatementBuilder(table, database, objectValues,
-						whereValues).getSQLStatement();
-		log.debug("update sqlString = " + sqlString);
+						whereValues), objectValues, 1,
+				UpdateStatement.Type.UPDATE_TO_NON_NULL_VALUE,subjectValues);
+		log.debug("update sqlString = " + statement.getSqlString());
 
-		engine.add(new UpdateStatement(database, table,
-				objectValues, sqlString, 1,
-				UpdateStatement.Type.UPDATE_TO_NON_NULL_VALUE,subjectValues));
+		engine.add(statement);
 	}
 	
 
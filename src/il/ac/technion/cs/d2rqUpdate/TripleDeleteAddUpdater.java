@@ -18,6 +18,7 @@
 package il.ac.technion.cs.d2rqUpdate;
 
 import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.ExecutionEngine;
+import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.UpdateConnections;
 import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.UpdateStatement;
 
 import java.sql.Connection;
@@ -39,8 +40,6 @@ import com.hp.hpl.jena.graph.Triple;
 import de.fuberlin.wiwiss.d2rq.D2RQException;
 import de.fuberlin.wiwiss.d2rq.algebra.Attribute;
 import de.fuberlin.wiwiss.d2rq.algebra.RelationName;
-import de.fuberlin.wiwiss.d2rq.algebra.TripleRelation;
-import de.fuberlin.wiwiss.d2rq.dbschema.DatabaseSchemaInspector;
 import de.fuberlin.wiwiss.d2rq.sql.ConnectedDB;
 
 /**
@@ -110,21 +109,30 @@ public class TripleDeleteAddUpdater extends AbstractTripleUpdater {
 	static private Log log = LogFactory.getLog(TripleDeleteAddUpdater.class);
 	private final Collection<Triple> triplesToDelete;
 	private final Collection<Triple> triplesToAdd;
-	private final Set<Attribute> allMappedAttributes;
 		
 	public TripleDeleteAddUpdater(Collection<Triple> triplesToDelete,
 		                          Collection<Triple> triplesToAdd,
-			                      Collection<TripleRelation> propertyBridges,
-			                      Set<Attribute> allMappedAttributes) {
-		super(propertyBridges);
+		                          GraphD2RQUpdate graph) {
+		super(graph);
 		this.triplesToAdd = triplesToAdd;
 		this.triplesToDelete = triplesToDelete;
-		this.allMappedAttributes = allMappedAttributes;
-		
 	}
 	
 	@Override
 	public void execute(){
+		UpdateConnections.begin(graph.getConnectionProvider());
+		try {
+			executeUpdate();
+		}
+		finally {
+			UpdateConnections.end();
+		}
+	}
+
+	/**
+	 * Executes the update on the connections checked out for it
+	 */
+	private void executeUpdate() {
 		Map<SubjectPropertyPair, Collection<Triple>> 
 			subjectProperty2TriplesToDeleteMap = 
 				getSubjectProperty2TriplesMap(triplesToDelete);
@@ -145,21 +153,28 @@ public class TripleDeleteAddUpdater extends AbstractTripleUpdater {
 				subjectProperty2TriplesToDeleteMap,
 				subjectProperty2TriplesToAddMap);
 		
-		new TripleDeleter(nonPairedTriplesToDelete, 
-				propertyBridges,allMappedAttributes).execute();
+		// the statements of the deleted, the added and the paired triples 
+		// are sorted and executed together, in the order they are added for
+		// each row
+		ExecutionEngine engine = createExecutionEngine();
+		
+		new TripleDeleter(nonPairedTriplesToDelete, graph).addStatements(
+				engine);
 		
-		new TripleAdder(nonPairedTriplesToAdd, 
-				propertyBridges).execute();
+		new TripleAdder(nonPairedTriplesToAdd, graph).addStatements(engine);
 		
-		executePairedTriples(subjectProperty2TriplesToDeleteMap,
+		addPairedTriplesStatements(engine, subjectProperty2TriplesToDeleteMap,
 							 subjectProperty2TriplesToAddMap);
+		
+		engine.execute();
 	}
 
 	/**
+	 * @param engine
 	 * @param subjectProperty2TriplesToDeleteMap
 	 * @param subjectProperty2TriplesToAddMap
 	 */
-	private void executePairedTriples(
+	private void addPairedTriplesStatements(ExecutionEngine engine,
 		Map<SubjectPropertyPair, Collection<Triple>> 
 			subjectProperty2TriplesToDeleteMap,
 		Map<SubjectPropertyPair, Collection<Triple>> 
@@ -174,7 +189,8 @@ public class TripleDeleteAddUpdater extends AbstractTripleUpdater {
 					" after sort out");
 		}
 		
-		ExecutionEngine engine = new ExecutionEngine();
+		List<RowToInsertOrUpdate> rowsToInsertOrUpdate = 
+			new ArrayList<RowToInsertOrUpdate>();
 		
 		for(SubjectPropertyPair subjectProperty : pairedSubjectPropertyPairs) {
 			
@@ -187,7 +203,7 @@ public class TripleDeleteAddUpdater extends AbstractTripleUpdater {
 					subjectProperty2TriplesToAddMap, subjectProperty);
 			
 			if(extractValuesInfoToDelete.size() < 1) {
-				return;
+				continue;
 			}
 			
 			ExtractValuesInfo firstInfo = 
@@ -205,28 +221,30 @@ public class TripleDeleteAddUpdater extends AbstractTripleUpdater {
 			Map<Attribute, String> objectValuesToAdd =
 				collectObjectValues(extractValuesInfoToAdd);
 			
-			execute(engine, database, table, subjectValues, 
-					objectValuesToDelete, objectValuesToAdd);
+			rowsToInsertOrUpdate.add(getRowToInsertOrUpdate(database, table, 
+					subjectValues, objectValuesToDelete, objectValuesToAdd));
 		}
 		
-		engine.execute();
+		RowExistenceProbe probe = 
+			probeRowExistence(engine, rowsToInsertOrUpdate);
+		for (RowToInsertOrUpdate row : rowsToInsertOrUpdate) {
+			execute(engine, probe, row);
+		}
 	}
 
 	/**
-	 * @param engine
 	 * @param database
 	 * @param table
 	 * @param subjectValues
 	 * @param objectValuesToDelete
 	 * @param objectValuesToAdd
 	 */
-	private void execute(ExecutionEngine engine, ConnectedDB database,
+	private RowToInsertOrUpdate getRowToInsertOrUpdate(ConnectedDB database,
 		RelationName table, Map<Attribute, String> subjectValues,
 		Map<Attribute, String> objectValuesToDelete,
 		Map<Attribute, String> objectValuesToAdd) {
 		
-		DatabaseSchemaInspector inspector =
-				new DatabaseSchemaInspector(database);
+		SchemaMetadataCache inspector = SchemaMetadataCache.get(database);
 
 		boolean tableHasPrimaryKeys =
 				!inspector.primaryKeyColumns(table).isEmpty();
@@ -236,20 +254,31 @@ public class TripleDeleteAddUpdater extends AbstractTripleUpdater {
 					+ "update not yet implemented");
 		}
 		
-		Connection connection = database.connection();
+		return new RowToInsertOrUpdate(database, table, subjectValues,
+				getRowKey(database, table, subjectValues, subjectValues),
+				objectValuesToDelete, objectValuesToAdd);
+	}
+	
+	/**
+	 * @param engine
+	 * @param probe the probe that checked the existence of the row
+	 * @param row
+	 */
+	private void execute(ExecutionEngine engine, RowExistenceProbe probe, 
+		RowToInsertOrUpdate row) {
+		ConnectedDB database = row.getDatabase();
+		RelationName table = row.getTable();
+		Connection connection = UpdateConnections.get(database);
 		
-		if (!doesCorrespondingRowAlreadyExist(database, table, subjectValues,
-				connection)) {
-			Map<Attribute, String> values = 
-				new HashMap<Attribute, String>(subjectValues);
-			values.putAll(objectValuesToAdd);
-			insertNewRow(engine, database, table, values, subjectValues,
-					connection);
+		if (!rowExists(engine, probe, row)) {
+			insertNewRow(engine, database, table, row.getValues(), 
+					row.getSubjectValues(), connection);
 			return;
 		}
 		
-		updateExistingRow(engine, database, table, subjectValues, 
-				objectValuesToDelete, objectValuesToAdd, connection);
+		updateExistingRow(engine, database, table, row.getSubjectValues(), 
+				row.getObjectValuesToDelete(), row.getObjectValuesToAdd(), 
+				connection);
 		
 	}
 	
@@ -266,14 +295,13 @@ public class TripleDeleteAddUpdater extends AbstractTripleUpdater {
 					objectValuesToAdd.get(attribute) }));
 		}
 
-		String sqlString =
+		UpdateStatement statement = createUpdateStatement(
 				new UpdateStatementBuilder(table, database, objectValuesToAdd,
-						whereValues).getSQLStatement();
-		log.debug("update sqlString = " + sqlString);
+						whereValues), objectValuesToAdd, 1,
+				UpdateStatement.Type.UPDATE_TO_NON_NULL_VALUE, subjectValues);
+		log.debug("update sqlString = " + statement.getSqlString());
 
-		engine.add(new UpdateStatement(database, table,
-				objectValuesToAdd, sqlString, 1,
-				UpdateStatement.Type.UPDATE_TO_NON_NULL_VALUE, subjectValues));
+		engine.add(statement);
 	}
 	
 	private Set<ExtractValuesInfo> getExctractedValuesInfoQueue(
@@ -284,10 +312,16 @@ public class TripleDeleteAddUpdater extends AbstractTripleUpdater {
 			subjectProperty2TriplesMap.get(subjectProperty);
 		
 		
+			UpdateMetrics metrics = graph.getUpdateMetrics();
+			long startTime = System.nanoTime();
 			Set<ExtractValuesInfo> extractValues = 
 				TripleUpdater.extractValues(triplesToDelete, propertyBridges);
+			metrics.record(UpdateMetrics.Phase.EXTRACTION, startTime);
+			
+			startTime = System.nanoTime();
 			extractValues =
 				splitMultipleTables(extractValues);
+			metrics.record(UpdateMetrics.Phase.TABLE_SPLITTING, startTime);
 			return extractValues;
 		}
 	
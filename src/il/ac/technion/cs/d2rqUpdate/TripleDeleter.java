@@ -17,14 +17,17 @@
 package il.ac.technion.cs.d2rqUpdate;
 
 import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.ExecutionEngine;
+import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.UpdateConnections;
 import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.UpdateStatement;
 
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -37,8 +40,6 @@ import com.hp.hpl.jena.graph.Triple;
 import de.fuberlin.wiwiss.d2rq.D2RQException;
 import de.fuberlin.wiwiss.d2rq.algebra.Attribute;
 import de.fuberlin.wiwiss.d2rq.algebra.RelationName;
-import de.fuberlin.wiwiss.d2rq.algebra.TripleRelation;
-import de.fuberlin.wiwiss.d2rq.dbschema.DatabaseSchemaInspector;
 import de.fuberlin.wiwiss.d2rq.sql.ConnectedDB;
 
 /**
@@ -50,11 +51,9 @@ public class TripleDeleter extends TripleUpdater {
 	static private Log log = LogFactory.getLog(TripleDeleter.class);
 	private final Set<Attribute> allMappedAttributes;
 
-	public TripleDeleter(Collection<Triple> triples,
-			Collection<TripleRelation> propertyBridges,
-			Set<Attribute> allMappedAttributes) {
-		super(triples, propertyBridges);
-		this.allMappedAttributes = allMappedAttributes;
+	public TripleDeleter(Collection<Triple> triples, GraphD2RQUpdate graph) {
+		super(triples, graph);
+		this.allMappedAttributes = graph.getMappedAttributes();
 	}
 
 	@Override
@@ -68,8 +67,7 @@ public class TripleDeleter extends TripleUpdater {
 			log.debug("object values = " + pair.getObjectValues() + 
 					" projections = " + pair.getProjections());
 		}
-		DatabaseSchemaInspector inspector = 
-			new DatabaseSchemaInspector(database);
+		SchemaMetadataCache inspector = SchemaMetadataCache.get(database);
 		
 		boolean tableHasPrimaryKeys = 
 			!inspector.primaryKeyColumns(table).isEmpty();
@@ -124,7 +122,7 @@ public class TripleDeleter extends TripleUpdater {
 
 	private void executePerSubjectsAndObjects(ExecutionEngine engine,
 		ConnectedDB database, RelationName table,
-		Map<Attribute, String> subjectValues, DatabaseSchemaInspector inspector,
+		Map<Attribute, String> subjectValues, SchemaMetadataCache inspector,
 		Map<Attribute, String> objectValues) {
 		
 		if (objectValues.size() == 0) {
@@ -161,7 +159,8 @@ public class TripleDeleter extends TripleUpdater {
 
 		Map<Attribute, String> objectValues = pair.getObjectValues();
 
-		Set<Attribute> candidateObjectsToDelete = objectValues.keySet();
+		Set<Attribute> candidateObjectsToDelete = 
+			new HashSet<Attribute>(objectValues.keySet());
 
 		// if there are more object values to delete - delete only those
 		// that participate in the projections. this will not delete
@@ -181,47 +180,38 @@ public class TripleDeleter extends TripleUpdater {
 		return objectValuesToDelete;
 	}
 
+	/**
+	 * Sets all the deleted columns of the rows of the subject to NULL by a 
+	 * single statement
+	 */
 	private void executeUpdatesToNULL(ExecutionEngine engine,
 		ConnectedDB database, RelationName table,
 		Map<Attribute, String> subjectValues, 
 		Map<Attribute, String> objectValues) {
 		
-		Map<Attribute, List<String>> whereValues =
-				convertMap2Scalar_2_Map2List(subjectValues);
-
+		Map<Attribute, String> nullValues = 
+			new HashMap<Attribute, String>(objectValues.size());
 		for (Attribute attribute : objectValues.keySet()) {
-			Map<Attribute, List<String>> whereValuesPerDeletedAttribute =
-					new HashMap<Attribute, List<String>>(whereValues);
-
-			whereValuesPerDeletedAttribute.put(attribute, java.util.Collections
-					.singletonList(objectValues.get(attribute)));
-
-			String sqlString =
-					new UpdateStatementBuilder(table, database,
-							java.util.Collections.singletonMap(attribute,
-									"NULL"), whereValuesPerDeletedAttribute)
-							.getSQLStatement();
-			log.debug("update sqlString = " + sqlString);
-
-			
-			engine.add(new UpdateStatement(database, table,		
-						   java.util.Collections.singletonMap(attribute,"NULL"),
-					sqlString, 0, UpdateStatement.Type.UPDATE_TO_NULL,
-					subjectValues));
+			nullValues.put(attribute, "NULL");
 		}
 
+		UpdateStatement statement = createUpdateStatement(
+				new UpdateToNullStatementBuilder(table, database,
+						subjectValues, objectValues),
+				nullValues, 0, UpdateStatement.Type.UPDATE_TO_NULL, 
+				subjectValues);
+		log.debug("update sqlString = " + statement.getSqlString());
+
+		engine.add(statement);
 	}
 
 	private void executeDeleteRow(ExecutionEngine engine, ConnectedDB database,
 		RelationName table, Map<Attribute, String> allValues,
 		Map<Attribute, String> subjectValues,
-		DatabaseSchemaInspector inspector) {
-		String sqlString = 
-			new DeleteStatementBuilder(table, database, 
-					allValues).getSQLStatement();
-
-		engine.add(new UpdateStatement(database, table, allValues, sqlString, 0,
-				UpdateStatement.Type.DELETE, subjectValues));
+		SchemaMetadataCache inspector) {
+		engine.add(createUpdateStatement(
+				new DeleteStatementBuilder(table, database, allValues), 
+				allValues, 0, UpdateStatement.Type.DELETE, subjectValues));
 	}
 
 	/**
@@ -232,10 +222,9 @@ public class TripleDeleter extends TripleUpdater {
 	 * @param inspector
 	 * @return
 	 */
-	@SuppressWarnings("unchecked")
 	private boolean shouldDeleteTheWholeRow(ConnectedDB database,
 		RelationName table, Map<Attribute, String> subjectValues,
-		Set<Attribute> objectAttributes, DatabaseSchemaInspector inspector) {
+		Set<Attribute> objectAttributes, SchemaMetadataCache inspector) {
 
 		log.debug("attributesDelete = " + objectAttributes);
 
@@ -245,7 +234,8 @@ public class TripleDeleter extends TripleUpdater {
 				new HashMap<Attribute, String>(subjectValues);
 
 		boolean allTheColumnsAreBeingDeleted = true;
-		List<Attribute> columnsToCheck = inspector.listColumns(table);
+		List<Attribute> columnsToCheck = 
+			new ArrayList<Attribute>(inspector.listColumns(table));
 		// check only columns that are mapped to some property
 		columnsToCheck.retainAll(allMappedAttributes);
 
@@ -271,10 +261,14 @@ public class TripleDeleter extends TripleUpdater {
 		log.debug("select sqlString = " + selectSQLString);
 
 		try {
-			Connection connection = database.connection();
+			Connection connection = UpdateConnections.get(database);
 			Statement selectStatement = connection.createStatement();
+			long startTime = System.nanoTime();
 			ResultSet resultSet = selectStatement.executeQuery(selectSQLString);
-			return resultSet.next();
+			boolean found = resultSet.next();
+			sqlTrace.traceQuery(table, selectSQLString, 
+					System.nanoTime() - startTime, found ? 1 : 0);
+			return found;
 
 		} catch (SQLException exceptionFromQuery) {
 			throw new D2RQException(exceptionFromQuery.getMessage() + ": "
@@ -285,7 +279,7 @@ public class TripleDeleter extends TripleUpdater {
 	private void verifyNonNullablesAreNotDeleted(ConnectedDB database,
 		RelationName table, Map<Attribute, String> subjectValues,
 		Map<Attribute, String> objectValues, 
-		DatabaseSchemaInspector inspector) {
+		SchemaMetadataCache inspector) {
 		
 		for (Attribute attribute : objectValues.keySet()) {
 			if (!inspector.isNullable(attribute)) {
@@ -318,10 +312,14 @@ public class TripleDeleter extends TripleUpdater {
 		log.debug("select sqlString = " + selectSQLString);
 
 		try {
-			Connection connection = database.connection();
+			Connection connection = UpdateConnections.get(database);
 			Statement selectStatement = connection.createStatement();
+			long startTime = System.nanoTime();
 			ResultSet resultSet = selectStatement.executeQuery(selectSQLString);
 			theAttributeContainsTheValueToBeDeleted = resultSet.next();
+			sqlTrace.traceQuery(table, selectSQLString, 
+					System.nanoTime() - startTime, 
+					theAttributeContainsTheValueToBeDeleted ? 1 : 0);
 		} catch (SQLException exceptionFromQuery) {
 			throw new D2RQException(exceptionFromQuery.getMessage() + ": "
 					+ selectSQLString);
@@ -0,0 +1,187 @@
+/*
+   Copyright 2010 Technion - Israel Institute of Technology
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package il.ac.technion.cs.d2rqUpdate;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.hp.hpl.jena.graph.Triple;
+
+import de.fuberlin.wiwiss.d2rq.algebra.Attribute;
+import de.fuberlin.wiwiss.d2rq.algebra.Relation;
+import de.fuberlin.wiwiss.d2rq.algebra.RelationName;
+import de.fuberlin.wiwiss.d2rq.algebra.TripleRelation;
+import de.fuberlin.wiwiss.d2rq.sql.ConnectedDB;
+
+/**
+ * Checks the existence of many triples by a few queries. A triple produced
+ * by a property bridge over a single table, without joins, aliases and
+ * additional conditions, exists if and only if the table has a row with the
+ * values of its subject and its object. The rows of all the triples are 
+ * looked up together by RowExistenceProbe, one query per table and per set
+ * of columns. The other triples (blank nodes, joins, d2rq:condition, SQL
+ * expressions) are checked by the graph, one by one.
+ *
+ * @author Vadim Eisenberg <Vadim.Eisenberg@gmail.com>
+ */
+class TripleExistenceProbe {
+	static private Log log = LogFactory.getLog(TripleExistenceProbe.class);
+
+	/**
+	 * A row whose existence implies the existence of a triple
+	 */
+	private static final class Row {
+		private final ConnectedDB database;
+		private final RelationName table;
+		private final Map<Attribute, String> values;
+
+		Row(ConnectedDB database, RelationName table, 
+			Map<Attribute, String> values) {
+			this.database = database;
+			this.table = table;
+			this.values = values;
+		}
+	}
+
+	private final GraphD2RQUpdate graph;
+
+	public TripleExistenceProbe(GraphD2RQUpdate graph) {
+		this.graph = graph;
+	}
+
+	/**
+	 * @param triples concrete triples
+	 * @return the triples that exist in the graph
+	 */
+	public Set<Triple> getExistentTriples(Collection<Triple> triples) {
+		PropertyBridgeIndex propertyBridges = graph.getPropertyBridgeIndex();
+		RowExistenceProbe probe = new RowExistenceProbe(
+				graph.getUpdateMetrics(), 
+				graph.getUpdateConfiguration().createSQLTrace());
+		
+		Map<Triple, List<Row>> rowsPerTriple = 
+			new HashMap<Triple, List<Row>>();
+		// the triples that at least one property bridge cannot check by a row
+		Set<Triple> triplesToCheckByGraph = new HashSet<Triple>();
+		
+		for (Triple triple : new LinkedHashSet<Triple>(triples)) {
+			if (triple.getSubject().isBlank() || 
+				triple.getObject().isBlank()) {
+				triplesToCheckByGraph.add(triple);
+				continue;
+			}
+			
+			List<Row> rows = new ArrayList<Row>(1);
+			for (TripleRelation tripleRelation : 
+				propertyBridges.getCandidates(triple.getPredicate())) {
+				PropertyBridgeIndex.SideEffects sideEffectsForSubject = 
+					propertyBridges.getSideEffects(tripleRelation, 
+							TripleRelation.SUBJECT, triple.getSubject());
+				if (sideEffectsForSubject == null) {
+					continue;
+				}
+				PropertyBridgeIndex.SideEffects sideEffectsForObject = 
+					propertyBridges.getSideEffects(tripleRelation, 
+							TripleRelation.OBJECT, triple.getObject());
+				if (sideEffectsForObject == null) {
+					continue;
+				}
+				
+				Row row = getRow(tripleRelation, 
+						sideEffectsForSubject.getValues(),
+						sideEffectsForObject.getValues());
+				if (row == null) {
+					triplesToCheckByGraph.add(triple);
+					continue;
+				}
+				probe.add(row.database, row.table, row.values);
+				rows.add(row);
+			}
+			rowsPerTriple.put(triple, rows);
+		}
+		
+		probe.execute();
+		
+		Set<Triple> existentTriples = new HashSet<Triple>();
+		for (Map.Entry<Triple, List<Row>> entry : rowsPerTriple.entrySet()) {
+			for (Row row : entry.getValue()) {
+				if (probe.exists(row.database, row.table, row.values)) {
+					existentTriples.add(entry.getKey());
+					break;
+				}
+			}
+		}
+		
+		triplesToCheckByGraph.removeAll(existentTriples);
+		log.debug(rowsPerTriple.size() + " triples checked by rows, " +
+				triplesToCheckByGraph.size() + " triples checked by the graph");
+		for (Triple triple : triplesToCheckByGraph) {
+			if (graph.contains(triple)) {
+				existentTriples.add(triple);
+			}
+		}
+		return existentTriples;
+	}
+
+	/**
+	 * @return the row whose existence implies the triple, null if the
+	 * triple relation is not a plain projection of a single table or the
+	 * values of the subject and the object were not extracted
+	 */
+	private static Row getRow(TripleRelation tripleRelation, 
+		Map<Attribute, String> subjectValues, 
+		Map<Attribute, String> objectValues) {
+		Relation baseRelation = tripleRelation.baseRelation();
+		if (!baseRelation.condition().isTrue() || 
+			!baseRelation.joinConditions().isEmpty() ||
+			subjectValues.isEmpty() || objectValues.isEmpty()) {
+			return null;
+		}
+		
+		Map<Attribute, String> values = 
+			new HashMap<Attribute, String>(subjectValues);
+		for (Map.Entry<Attribute, String> entry : objectValues.entrySet()) {
+			String value = values.put(entry.getKey(), entry.getValue());
+			if (value != null && !value.equals(entry.getValue())) {
+				// the subject and the object contradict each other
+				return null;
+			}
+		}
+		
+		RelationName table = null;
+		for (Attribute attribute : values.keySet()) {
+			if (table == null) {
+				table = attribute.relationName();
+			} else if (!table.equals(attribute.relationName())) {
+				return null;
+			}
+		}
+		if (baseRelation.aliases().isAlias(table)) {
+			return null;
+		}
+		return new Row(baseRelation.database(), table, values);
+	}
+}
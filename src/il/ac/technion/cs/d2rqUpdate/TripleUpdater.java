@@ -16,6 +16,7 @@
 
 package il.ac.technion.cs.d2rqUpdate;
 import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.ExecutionEngine;
+import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.UpdateConnections;
 
 import java.util.Collection;
 import java.util.HashMap;
@@ -29,11 +30,8 @@ import org.apache.commons.logging.LogFactory;
 
 import com.hp.hpl.jena.graph.Triple;
 
-import de.fuberlin.wiwiss.d2rq.algebra.AliasMap;
 import de.fuberlin.wiwiss.d2rq.algebra.Attribute;
 import de.fuberlin.wiwiss.d2rq.algebra.RelationName;
-import de.fuberlin.wiwiss.d2rq.algebra.TripleRelation;
-import de.fuberlin.wiwiss.d2rq.dbschema.DatabaseSchemaInspector;
 import de.fuberlin.wiwiss.d2rq.sql.ConnectedDB;
 
 /**
@@ -44,21 +42,45 @@ import de.fuberlin.wiwiss.d2rq.sql.ConnectedDB;
 public abstract class TripleUpdater extends AbstractTripleUpdater {
 	static Log log = LogFactory.getLog(TripleUpdater.class);
 	private final Collection<Triple> triples;
-	public TripleUpdater(Collection<Triple> triples, 
-			Collection<TripleRelation> propertyBridges) {
-		super(propertyBridges);
+	public TripleUpdater(Collection<Triple> triples, GraphD2RQUpdate graph) {
+		super(graph);
 		this.triples = triples;
 		log.debug("triples to update = " + triples);
 	}
 	
 	@Override
-	public void execute() {
+	public void execute(){
+		UpdateConnections.begin(graph.getConnectionProvider());
+		try {
+			executeUpdate();
+		}
+		finally {
+			UpdateConnections.end();
+		}
+	}
+
+	/**
+	 * Executes the update on the connections checked out for it
+	 */
+	private void executeUpdate() {
+		ExecutionEngine engine = createExecutionEngine();
+		addStatements(engine);
+		engine.execute();
+	}
+
+	/**
+	 * Adds the statements of the update to the engine, without executing 
+	 * them, so that the statements of several updaters are sorted and 
+	 * executed together. The statements already added to the engine are
+	 * taken into account when the existence of the rows is checked.
+	 * 
+	 * @param engine
+	 */
+	void addStatements(ExecutionEngine engine) {
 		Map<SubjectValuesTablePair, Collection<ExtractValuesInfo>> 
 			subjectTablePairToTriplesMap = 
 				getSubjectTablePair2ExctractedValuesMap();
 		
-		ExecutionEngine engine = new ExecutionEngine();
-		
 		Collection<SubjectValuesTablePair> subjectTablePairs =
 			subjectTablePairToTriplesMap.keySet();
 		
@@ -70,7 +92,16 @@ public abstract class TripleUpdater extends AbstractTripleUpdater {
 					extractedValuesPerSubjectAndTable);
 		}
 		
-		engine.execute();
+		addDeferredStatements(engine);
+	}
+	
+	/**
+	 * Called after all the subjects are handled, before the statements are
+	 * executed. The subclasses that need to query the database while 
+	 * producing the statements, do it here for all the subjects at once. 
+	 * @param engine
+	 */
+	protected void addDeferredStatements(ExecutionEngine engine) {
 	}
 	
 	
@@ -81,47 +112,57 @@ public abstract class TripleUpdater extends AbstractTripleUpdater {
 				new HashMap<SubjectValuesTablePair, 
 							Collection<ExtractValuesInfo>>();
 
+		UpdateMetrics metrics = graph.getUpdateMetrics();
+		long startTime = System.nanoTime();
 		Set<ExtractValuesInfo> extractedValues =
 				extractValues(triples, propertyBridges);
+		metrics.record(UpdateMetrics.Phase.EXTRACTION, startTime);
 		
+		startTime = System.nanoTime();
 		extractedValues = splitMultipleTables(extractedValues);
+		metrics.record(UpdateMetrics.Phase.TABLE_SPLITTING, startTime);
 
 		for (ExtractValuesInfo info : extractedValues) {
 			RelationName table = getSingleTable(getMentionedTables(info));
-			filterTheSubjectValuesByThePrimaryKeys(info, table);
+			info = filterTheSubjectValuesByThePrimaryKeys(info, table);
 			SubjectValuesTablePair key =
 					new SubjectValuesTablePair(info.getSubjectValues(), table);
-			if (!subjectToTriplesMap.containsKey(key)) {
-				subjectToTriplesMap.put(key, new HashSet<ExtractValuesInfo>());
-			}
 			Collection<ExtractValuesInfo> extractedPerSubjectAndTable =
 					subjectToTriplesMap.get(key);
+			if (extractedPerSubjectAndTable == null) {
+				extractedPerSubjectAndTable = new HashSet<ExtractValuesInfo>();
+				subjectToTriplesMap.put(key, extractedPerSubjectAndTable);
+			}
 			extractedPerSubjectAndTable.add(info);
 		}
 
 		return subjectToTriplesMap;
 	}
 
-	@SuppressWarnings("unchecked")
-	private void filterTheSubjectValuesByThePrimaryKeys(ExtractValuesInfo info,
-		RelationName table) {
-		DatabaseSchemaInspector inspector =
-			new DatabaseSchemaInspector(info.getDatabase());
+	private ExtractValuesInfo filterTheSubjectValuesByThePrimaryKeys(
+		ExtractValuesInfo info, RelationName table) {
+		SchemaMetadataCache inspector = 
+			SchemaMetadataCache.get(info.getDatabase());
 		// handle aliases
-		AliasMap aliases = info.getAliases(); 
-		RelationName theAliasedtable = renameTable(table, aliases);
+		RelationName theAliasedtable = 
+			propertyBridges.getPlan(info).getOriginalTable(table);
 		
 		List<Attribute> primaryKeys = 
 			inspector.primaryKeyColumns(theAliasedtable);
 		
-		Set<Attribute> attributes = 
-			new HashSet<Attribute>(info.getSubjectValues().keySet());
+		if (primaryKeys.containsAll(info.getSubjectValues().keySet())) {
+			return info;
+		}
 		
-		for (Attribute attribute : attributes) {	
-			if (!primaryKeys.contains(attribute)) {
-				info.getSubjectValues().remove(attribute);
+		Map<Attribute, String> subjectValues = 
+			new HashMap<Attribute, String>(primaryKeys.size());
+		for (Map.Entry<Attribute, String> entry : 
+				info.getSubjectValues().entrySet()) {	
+			if (primaryKeys.contains(entry.getKey())) {
+				subjectValues.put(entry.getKey(), entry.getValue());
 			}
 		}
+		return info.withSubjectValues(subjectValues);
 	}
 	
 
@@ -142,8 +183,8 @@ public abstract class TripleUpdater extends AbstractTripleUpdater {
 			getSingleTable(getMentionedTables(firstInfo));
 		
 		// handle aliases
-		AliasMap aliases = firstInfo.getAliases(); 
-		table = renameTable(table, aliases);
+		UpdatePlan plan = propertyBridges.getPlan(firstInfo); 
+		table = plan.getOriginalTable(table);
 		
 		ConnectedDB database = firstInfo.getDatabase();
 		
@@ -151,7 +192,7 @@ public abstract class TripleUpdater extends AbstractTripleUpdater {
 		log.debug("subjectValues before rename for table = " + table + " : " + 
 				firstInfo.getSubjectValues());
 		Map<Attribute, String> subjectValues = 
-			renameValues(firstInfo.getSubjectValues(),aliases);
+			plan.getOriginalValues(firstInfo.getSubjectValues());
 	
 		Set<ObjectValuesProjectionsPair> objectValuesProjectionsPairs = new
 			HashSet<ObjectValuesProjectionsPair>(
@@ -160,8 +201,8 @@ public abstract class TripleUpdater extends AbstractTripleUpdater {
 		for(ExtractValuesInfo info : extractedValuesPerSubjectAndTable) {
 			ObjectValuesProjectionsPair pair = 
 				new ObjectValuesProjectionsPair(
-					renameValues(info.getObjectValues(),aliases),
-					renameAttributes(info.getProjections(),aliases, database));
+					plan.getOriginalValues(info.getObjectValues()),
+					plan.getOriginalAttributes(info.getProjections()));
 			objectValuesProjectionsPairs.add(pair);
 		}
 		
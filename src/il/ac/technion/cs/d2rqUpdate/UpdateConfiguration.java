@@ -0,0 +1,408 @@
+/*
+   Copyright 2010 Technion - Israel Institute of Technology
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package il.ac.technion.cs.d2rqUpdate;
+
+import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.ConnectionPool;
+import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.ConnectionProvider;
+import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.SQLTrace;
+import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.SharedConnectionProvider;
+import il.ac.technion.cs.d2rqUpdate.vocab.D2RQUpdate;
+
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.ResIterator;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+import de.fuberlin.wiwiss.d2rq.D2RQException;
+
+/**
+ * The settings of D2RQ/Update, read from the d2rqu:UpdateConfiguration
+ * resource of the mapping, if there is one:
+ *
+ * <pre>
+ * map:updateConfiguration a d2rqu:UpdateConfiguration;
+ *     d2rqu:batchSize 500;
+ *     d2rqu:commitEveryBatch true;
+ *     d2rqu:maxRowsPerInsert 100;
+ *     d2rqu:maxRowsPerDelete 500;
+ *     d2rqu:parallelism 1;
+ *     d2rqu:upsert true;
+ *     d2rqu:connectionPoolSize 8;
+ *     d2rqu:connectionWaitTimeout 10000;
+ *     d2rqu:streamWindowSize 0;
+ *     d2rqu:sqlTrace true;
+ *     d2rqu:slowStatementThreshold 100;
+ *     d2rqu:jmxMetrics true;
+ *     .
+ * </pre>
+ *
+ * The same settings may be given in the description of the model in an 
+ * assembler specification, overriding the settings of the mapping.
+ *
+ * @author Vadim Eisenberg <Vadim.Eisenberg@gmail.com>
+ *
+ * @see de.fuberlin.wiwiss.d2rq.map.Configuration
+ */
+public class UpdateConfiguration {
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+	public static final int DEFAULT_MAX_ROWS_PER_INSERT = 100;
+	public static final int DEFAULT_MAX_ROWS_PER_DELETE = 500;
+	public static final long DEFAULT_CONNECTION_WAIT_TIMEOUT = 
+		ConnectionPool.DEFAULT_WAIT_TIMEOUT;
+	public static final int DEFAULT_STREAM_WINDOW_SIZE = 0;
+
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private boolean commitEveryBatch = false;
+	private int maxRowsPerInsert = DEFAULT_MAX_ROWS_PER_INSERT;
+	private int maxRowsPerDelete = DEFAULT_MAX_ROWS_PER_DELETE;
+	private int parallelism = 1;
+	private boolean upsert = true;
+	private int connectionPoolSize = 0;
+	private long connectionWaitTimeout = DEFAULT_CONNECTION_WAIT_TIMEOUT;
+	private String connectionProviderClass = null;
+	private int streamWindowSize = DEFAULT_STREAM_WINDOW_SIZE;
+	private boolean sqlTrace = false;
+	private long slowStatementThreshold = 0;
+	private boolean jmxMetrics = false;
+
+	public UpdateConfiguration() {
+	}
+
+	/**
+	 * @param mapModel the mapping
+	 */
+	public UpdateConfiguration(Model mapModel) {
+		ResIterator iterator = mapModel.listSubjectsWithProperty(RDF.type,
+				D2RQUpdate.UpdateConfiguration);
+		try {
+			if (!iterator.hasNext()) {
+				return;
+			}
+			Resource configuration = iterator.nextResource();
+			if (iterator.hasNext()) {
+				throw new D2RQException("Only one d2rqu:UpdateConfiguration " +
+						"is allowed in the mapping");
+			}
+			read(configuration);
+		}
+		finally {
+			iterator.close();
+		}
+	}
+
+	/**
+	 * Reads the D2RQ/Update settings of the resource, overriding the current
+	 * settings
+	 * 
+	 * @param configuration a d2rqu:UpdateConfiguration of a mapping, or the
+	 * description of a model in an assembler specification
+	 */
+	public void read(Resource configuration) {
+		Statement statement =
+			getProperty(configuration, D2RQUpdate.batchSize);
+		if (statement != null) {
+			setBatchSize(statement.getInt());
+		}
+		statement = getProperty(configuration, D2RQUpdate.commitEveryBatch);
+		if (statement != null) {
+			setCommitEveryBatch(statement.getBoolean());
+		}
+		statement = getProperty(configuration, D2RQUpdate.maxRowsPerInsert);
+		if (statement != null) {
+			setMaxRowsPerInsert(statement.getInt());
+		}
+		statement = getProperty(configuration, D2RQUpdate.maxRowsPerDelete);
+		if (statement != null) {
+			setMaxRowsPerDelete(statement.getInt());
+		}
+		statement = getProperty(configuration, D2RQUpdate.parallelism);
+		if (statement != null) {
+			setParallelism(statement.getInt());
+		}
+		statement = getProperty(configuration, D2RQUpdate.upsert);
+		if (statement != null) {
+			setUpsert(statement.getBoolean());
+		}
+		statement = getProperty(configuration, D2RQUpdate.connectionPoolSize);
+		if (statement != null) {
+			setConnectionPoolSize(statement.getInt());
+		}
+		statement = 
+			getProperty(configuration, D2RQUpdate.connectionWaitTimeout);
+		if (statement != null) {
+			setConnectionWaitTimeout(statement.getLong());
+		}
+		statement = 
+			getProperty(configuration, D2RQUpdate.connectionProviderClass);
+		if (statement != null) {
+			setConnectionProviderClass(statement.getString());
+		}
+		statement = getProperty(configuration, D2RQUpdate.streamWindowSize);
+		if (statement != null) {
+			setStreamWindowSize(statement.getInt());
+		}
+		statement = getProperty(configuration, D2RQUpdate.sqlTrace);
+		if (statement != null) {
+			setSqlTrace(statement.getBoolean());
+		}
+		statement = 
+			getProperty(configuration, D2RQUpdate.slowStatementThreshold);
+		if (statement != null) {
+			setSlowStatementThreshold(statement.getLong());
+		}
+		statement = getProperty(configuration, D2RQUpdate.jmxMetrics);
+		if (statement != null) {
+			setJmxMetrics(statement.getBoolean());
+		}
+	}
+
+	private Statement getProperty(Resource configuration, Property property) {
+		return configuration.hasProperty(property) ?
+				configuration.getProperty(property) : null;
+	}
+
+	/**
+	 * @return the maximal number of statements sent to the database in one
+	 * batch, 0 for no limit
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 0) {
+			throw new D2RQException("d2rqu:batchSize must not be negative: " +
+					batchSize);
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @return whether each batch is committed separately. This bounds the
+	 * time the locks are held, but an update that fails in the middle
+	 * leaves the preceding batches committed.
+	 */
+	public boolean getCommitEveryBatch() {
+		return commitEveryBatch;
+	}
+
+	public void setCommitEveryBatch(boolean commitEveryBatch) {
+		this.commitEveryBatch = commitEveryBatch;
+	}
+
+	/**
+	 * @return the maximal number of rows inserted into a table by a single 
+	 * INSERT statement, 1 to insert each row by a separate statement
+	 */
+	public int getMaxRowsPerInsert() {
+		return maxRowsPerInsert;
+	}
+
+	public void setMaxRowsPerInsert(int maxRowsPerInsert) {
+		if (maxRowsPerInsert < 1) {
+			throw new D2RQException("d2rqu:maxRowsPerInsert must be " +
+					"positive: " + maxRowsPerInsert);
+		}
+		this.maxRowsPerInsert = maxRowsPerInsert;
+	}
+
+	/**
+	 * @return the maximal number of rows deleted by a single DELETE 
+	 * statement, 1 to delete each row by a separate statement
+	 */
+	public int getMaxRowsPerDelete() {
+		return maxRowsPerDelete;
+	}
+
+	public void setMaxRowsPerDelete(int maxRowsPerDelete) {
+		if (maxRowsPerDelete < 1) {
+			throw new D2RQException("d2rqu:maxRowsPerDelete must be " +
+					"positive: " + maxRowsPerDelete);
+		}
+		this.maxRowsPerDelete = maxRowsPerDelete;
+	}
+
+	/**
+	 * @return the number of database connections an update is executed on,
+	 * always 1: the statements of an update are executed on a single 
+	 * connection, in a single transaction
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * @throws D2RQException if the parallelism is not 1, since an update 
+	 * executed on several connections could not be committed atomically
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism != 1) {
+			throw new D2RQException("d2rqu:parallelism " + parallelism + 
+					" is not supported: the updates are executed on a " +
+					"single connection, so that they are committed " +
+					"atomically");
+		}
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * @return whether the rows of the added triples are inserted or updated
+	 * by a single upsert statement, on the databases that support it, 
+	 * instead of checking their existence first
+	 */
+	public boolean getUpsert() {
+		return upsert;
+	}
+
+	public void setUpsert(boolean upsert) {
+		this.upsert = upsert;
+	}
+
+	/**
+	 * @return the maximal number of connections in the pool the updates are
+	 * executed on, 0 to execute them on the connection of the mapping
+	 */
+	public int getConnectionPoolSize() {
+		return connectionPoolSize;
+	}
+
+	public void setConnectionPoolSize(int connectionPoolSize) {
+		if (connectionPoolSize < 0) {
+			throw new D2RQException("d2rqu:connectionPoolSize must not be " +
+					"negative: " + connectionPoolSize);
+		}
+		this.connectionPoolSize = connectionPoolSize;
+	}
+
+	/**
+	 * @return the maximal time an update waits for a connection of the pool,
+	 * in milliseconds
+	 */
+	public long getConnectionWaitTimeout() {
+		return connectionWaitTimeout;
+	}
+
+	public void setConnectionWaitTimeout(long connectionWaitTimeout) {
+		if (connectionWaitTimeout < 0) {
+			throw new D2RQException("d2rqu:connectionWaitTimeout must not be " +
+					"negative: " + connectionWaitTimeout);
+		}
+		this.connectionWaitTimeout = connectionWaitTimeout;
+	}
+
+	/**
+	 * @return the name of a class implementing ConnectionProvider, with a 
+	 * public constructor without parameters, that provides the connections
+	 * instead of the pool, null if not set
+	 */
+	public String getConnectionProviderClass() {
+		return connectionProviderClass;
+	}
+
+	public void setConnectionProviderClass(String connectionProviderClass) {
+		this.connectionProviderClass = connectionProviderClass;
+	}
+
+	/**
+	 * @return the number of triples added together when the triples are
+	 * added from an iterator or from another graph, 0 to add all of them 
+	 * together
+	 */
+	public int getStreamWindowSize() {
+		return streamWindowSize;
+	}
+
+	public void setStreamWindowSize(int streamWindowSize) {
+		if (streamWindowSize < 0) {
+			throw new D2RQException("d2rqu:streamWindowSize must not be " +
+					"negative: " + streamWindowSize);
+		}
+		this.streamWindowSize = streamWindowSize;
+	}
+
+	/**
+	 * @return whether all the executed SQL statements are traced
+	 */
+	public boolean getSqlTrace() {
+		return sqlTrace;
+	}
+
+	public void setSqlTrace(boolean sqlTrace) {
+		this.sqlTrace = sqlTrace;
+	}
+
+	/**
+	 * @return whether the metrics of the updates of a graph are registered 
+	 * as MBeans in the platform MBean server, until the graph is closed
+	 */
+	public boolean getJmxMetrics() {
+		return jmxMetrics;
+	}
+
+	public void setJmxMetrics(boolean jmxMetrics) {
+		this.jmxMetrics = jmxMetrics;
+	}
+
+	/**
+	 * @return the duration, in milliseconds, above which SQL statements are
+	 * traced as slow, 0 not to trace slow statements
+	 */
+	public long getSlowStatementThreshold() {
+		return slowStatementThreshold;
+	}
+
+	public void setSlowStatementThreshold(long slowStatementThreshold) {
+		if (slowStatementThreshold < 0) {
+			throw new D2RQException("d2rqu:slowStatementThreshold must not " +
+					"be negative: " + slowStatementThreshold);
+		}
+		this.slowStatementThreshold = slowStatementThreshold;
+	}
+
+	/**
+	 * @return the trace of the SQL statements, by these settings
+	 */
+	public SQLTrace createSQLTrace() {
+		if (!sqlTrace && slowStatementThreshold == 0) {
+			return SQLTrace.DISABLED;
+		}
+		return new SQLTrace(sqlTrace, slowStatementThreshold);
+	}
+
+	/**
+	 * @return a new provider of the connections the updates are executed on
+	 */
+	public ConnectionProvider createConnectionProvider() {
+		if (connectionProviderClass != null) {
+			try {
+				return (ConnectionProvider) 
+					Class.forName(connectionProviderClass).newInstance();
+			} catch (Exception exception) {
+				throw new D2RQException("Cannot create the connection " +
+						"provider " + connectionProviderClass + ": " + 
+						exception, exception);
+			}
+		}
+		if (connectionPoolSize > 0) {
+			return new ConnectionPool(connectionPoolSize, 
+					connectionWaitTimeout);
+		}
+		return new SharedConnectionProvider();
+	}
+}
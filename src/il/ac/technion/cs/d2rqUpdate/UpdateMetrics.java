@@ -0,0 +1,199 @@
+/*
+   Copyright 2010 Technion - Israel Institute of Technology
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package il.ac.technion.cs.d2rqUpdate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import de.fuberlin.wiwiss.d2rq.algebra.RelationName;
+
+/**
+ * The durations of the phases of the updates of a graph. Each phase is 
+ * measured as a whole, and the phases that access tables, the existence
+ * probes and the SQL execution, also per table and per operation. Once
+ * registered, the metrics of each phase, table and operation are an MBean
+ * named 
+ * 
+ * <pre>
+ * il.ac.technion.cs.d2rqUpdate:type=UpdateMetrics,graph="1",phase=SQL_EXECUTION,table="users",operation="INSERT"
+ * </pre>
+ * 
+ * @author Vadim Eisenberg <Vadim.Eisenberg@gmail.com>
+ */
+public class UpdateMetrics {
+	static private Log log = LogFactory.getLog(UpdateMetrics.class);
+
+	public static final String DOMAIN = "il.ac.technion.cs.d2rqUpdate";
+
+	public enum Phase {
+		/** extracting the values of the triples by the property bridges */
+		EXTRACTION,
+		/** splitting the values of a triple among the tables */
+		TABLE_SPLITTING,
+		/** checking whether the rows of the updated triples exist */
+		EXISTENCE_PROBE,
+		/** building the dependency graph of the statements */
+		DEPENDENCY_GRAPH,
+		/** sorting the statements topologically */
+		SORT,
+		/** executing the statements */
+		SQL_EXECUTION
+	}
+
+	// keyed by the phase, the table and the operation, the last two are null
+	// for the metrics of the whole phase
+	private final ConcurrentMap<List<Object>, PhaseMetrics> metrics = 
+		new ConcurrentHashMap<List<Object>, PhaseMetrics>();
+
+	private MBeanServer server = null;
+	private String graphName = null;
+	private final List<ObjectName> registeredNames = 
+		new ArrayList<ObjectName>();
+
+	/**
+	 * @param phase
+	 * @param startTime the System.nanoTime() when the phase started
+	 */
+	public void record(Phase phase, long startTime) {
+		getMetrics(phase, null, null).record(System.nanoTime() - startTime);
+	}
+
+	/**
+	 * Records the phase both as a whole and for the table and the operation
+	 * 
+	 * @param phase
+	 * @param table
+	 * @param operation such as INSERT or SELECT
+	 * @param startTime the System.nanoTime() when the phase started
+	 */
+	public void record(Phase phase, RelationName table, String operation,
+		long startTime) {
+		long duration = System.nanoTime() - startTime;
+		getMetrics(phase, null, null).record(duration);
+		getMetrics(phase, table, operation).record(duration);
+	}
+
+	/**
+	 * @return the metrics of the whole phase
+	 */
+	public PhaseMetrics getMetrics(Phase phase) {
+		return getMetrics(phase, null, null);
+	}
+
+	/**
+	 * @return the metrics of the phase for the table and the operation
+	 */
+	public PhaseMetrics getMetrics(Phase phase, RelationName table, 
+		String operation) {
+		List<Object> key = Arrays.<Object>asList(phase, table, operation);
+		PhaseMetrics phaseMetrics = metrics.get(key);
+		if (phaseMetrics == null) {
+			PhaseMetrics newMetrics = new PhaseMetrics();
+			phaseMetrics = metrics.putIfAbsent(key, newMetrics);
+			if (phaseMetrics == null) {
+				phaseMetrics = newMetrics;
+				register(key, phaseMetrics);
+			}
+		}
+		return phaseMetrics;
+	}
+
+	/**
+	 * Registers the metrics recorded so far, and the metrics of the tables 
+	 * and the operations seen afterwards, as MBeans 
+	 * 
+	 * @param server
+	 * @param graphName distinguishes the graph among the graphs registered 
+	 * in the server
+	 */
+	public synchronized void register(MBeanServer server, String graphName) {
+		unregister();
+		this.server = server;
+		this.graphName = graphName;
+		for (Phase phase : Phase.values()) {
+			getMetrics(phase);
+		}
+		for (Map.Entry<List<Object>, PhaseMetrics> entry : metrics.entrySet()) {
+			register(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Unregisters all the MBeans of the metrics
+	 */
+	public synchronized void unregister() {
+		if (server == null) {
+			return;
+		}
+		for (ObjectName name : registeredNames) {
+			try {
+				if (server.isRegistered(name)) {
+					server.unregisterMBean(name);
+				}
+			} catch (JMException exception) {
+				log.warn("Cannot unregister " + name, exception);
+			}
+		}
+		registeredNames.clear();
+		server = null;
+	}
+
+	private synchronized void register(List<Object> key, 
+		PhaseMetrics phaseMetrics) {
+		if (server == null) {
+			return;
+		}
+		String name = DOMAIN + ":type=UpdateMetrics,graph=" + 
+			ObjectName.quote(graphName) + ",phase=" + key.get(0);
+		if (key.get(1) != null) {
+			name += ",table=" + 
+				ObjectName.quote(((RelationName) key.get(1)).qualifiedName()) + 
+				",operation=" + ObjectName.quote(String.valueOf(key.get(2)));
+		}
+		try {
+			ObjectName objectName = new ObjectName(name);
+			if (!server.isRegistered(objectName)) {
+				server.registerMBean(phaseMetrics, objectName);
+				registeredNames.add(objectName);
+			}
+		} catch (JMException exception) {
+			log.warn("Cannot register " + name, exception);
+		} catch (SecurityException exception) {
+			log.warn("Cannot register " + name, exception);
+		}
+	}
+
+	/**
+	 * @return the names of the registered MBeans
+	 */
+	public synchronized List<ObjectName> getRegisteredNames() {
+		return Collections.unmodifiableList(
+				new ArrayList<ObjectName>(registeredNames));
+	}
+}
@@ -0,0 +1,203 @@
+/*
+   Copyright 2010 Technion - Israel Institute of Technology
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package il.ac.technion.cs.d2rqUpdate;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import de.fuberlin.wiwiss.d2rq.algebra.AliasMap;
+import de.fuberlin.wiwiss.d2rq.algebra.Attribute;
+import de.fuberlin.wiwiss.d2rq.algebra.Join;
+import de.fuberlin.wiwiss.d2rq.algebra.RelationName;
+
+/**
+ * What an update needs to know about the joins and the aliases of a 
+ * property bridge, computed once per bridge instead of once per triple: 
+ * the equivalence classes of the attributes equated by the joins, and the
+ * original tables of the aliases. The values of a triple are then only 
+ * looked up in the plan. The plans are immutable and shared by all the 
+ * updates.
+ *
+ * @author Vadim Eisenberg <Vadim.Eisenberg@gmail.com>
+ */
+final class UpdatePlan {
+	static private Log log = LogFactory.getLog(UpdatePlan.class);
+
+	private final AliasMap aliases;
+
+	// the attributes equated by the joins, per attribute of a join
+	private final Map<Attribute, Set<Attribute>> equivalenceClasses;
+
+	// the original tables, per table, aliased or not, of the attributes of 
+	// the bridge
+	private final Map<RelationName, RelationName> originalTables;
+
+	/**
+	 * @param joins the joins of the bridge
+	 * @param aliases the aliases of the bridge
+	 * @param attributes the other attributes of the bridge, to find the 
+	 * original tables of their aliases in advance
+	 */
+	UpdatePlan(Set<Join> joins, AliasMap aliases, 
+		Collection<Attribute> attributes) {
+		this.aliases = aliases;
+		this.equivalenceClasses = 
+			Collections.unmodifiableMap(createEquivalenceClasses(joins));
+		
+		Map<RelationName, RelationName> originalTables = 
+			new HashMap<RelationName, RelationName>();
+		for (Attribute attribute : equivalenceClasses.keySet()) {
+			addOriginalTable(originalTables, attribute.relationName());
+		}
+		for (Attribute attribute : attributes) {
+			addOriginalTable(originalTables, attribute.relationName());
+		}
+		this.originalTables = Collections.unmodifiableMap(originalTables);
+	}
+
+	/**
+	 * @return the attribute and the attributes equated to it by the joins
+	 */
+	Set<Attribute> getEquivalenceClass(Attribute attribute) {
+		Set<Attribute> equivalenceClass = equivalenceClasses.get(attribute);
+		return equivalenceClass != null ? equivalenceClass : 
+			Collections.singleton(attribute);
+	}
+
+	/**
+	 * @return the table, or the original table if the table is an alias
+	 */
+	RelationName getOriginalTable(RelationName table) {
+		RelationName originalTable = originalTables.get(table);
+		if (originalTable != null) {
+			return originalTable;
+		}
+		return aliases.isAlias(table) ? aliases.originalOf(table) : table;
+	}
+
+	/**
+	 * @return the attribute of the original table, if its table is an alias
+	 */
+	Attribute getOriginalAttribute(Attribute attribute) {
+		RelationName originalTable = 
+			getOriginalTable(attribute.relationName());
+		if (originalTable.equals(attribute.relationName())) {
+			return attribute;
+		}
+		return new Attribute(originalTable, attribute.attributeName());
+	}
+
+	/**
+	 * @return the values of the attributes of the original tables
+	 */
+	Map<Attribute, String> getOriginalValues(Map<Attribute, String> values) {
+		Map<Attribute, String> originalValues = 
+			new HashMap<Attribute, String>(values.size() * 2);
+		for (Map.Entry<Attribute, String> entry : values.entrySet()) {
+			originalValues.put(getOriginalAttribute(entry.getKey()), 
+					entry.getValue());
+		}
+		return originalValues;
+	}
+
+	/**
+	 * @return the attributes of the original tables
+	 */
+	Set<Attribute> getOriginalAttributes(Set<Attribute> attributes) {
+		Set<Attribute> originalAttributes = 
+			new HashSet<Attribute>(attributes.size() * 2);
+		for (Attribute attribute : attributes) {
+			originalAttributes.add(getOriginalAttribute(attribute));
+		}
+		return originalAttributes;
+	}
+
+	private void addOriginalTable(Map<RelationName, RelationName> 
+		originalTables, RelationName table) {
+		originalTables.put(table, 
+				aliases.isAlias(table) ? aliases.originalOf(table) : table);
+	}
+
+	private static Map<Attribute, Set<Attribute>> 
+		createEquivalenceClasses(Set<Join> joins) {
+		Map<Attribute, Set<Attribute>> equivalenceClasses = 
+			new HashMap<Attribute, Set<Attribute>>();
+		
+		for (Join join : joins) {
+			if (join.attributes1().size() != 1 || 
+					join.attributes2().size() != 1){
+				log.error("joins with several attributes are currently " + 
+						"unsupported");
+				continue;
+			}
+			Attribute attribute1 = (Attribute) join.attributes1().get(0);  
+			Attribute attribute2 = (Attribute) join.attributes2().get(0);
+			
+			Set<Attribute> class1 = getClass(equivalenceClasses, attribute1);
+			Set<Attribute> class2 = getClass(equivalenceClasses, attribute2);
+			if (class1 == class2) {
+				continue;
+			}
+			// merge the smaller class into the larger one
+			if (class1.size() < class2.size()) {
+				Set<Attribute> smallerClass = class1;
+				class1 = class2;
+				class2 = smallerClass;
+			}
+			class1.addAll(class2);
+			for (Attribute attribute : class2) {
+				equivalenceClasses.put(attribute, class1);
+			}
+		}
+		
+		Map<Attribute, Set<Attribute>> result = 
+			new HashMap<Attribute, Set<Attribute>>(equivalenceClasses.size());
+		Map<Set<Attribute>, Set<Attribute>> unmodifiableClasses = 
+			new IdentityHashMap<Set<Attribute>, Set<Attribute>>();
+		for (Map.Entry<Attribute, Set<Attribute>> entry : 
+			equivalenceClasses.entrySet()) {
+			Set<Attribute> unmodifiableClass = 
+				unmodifiableClasses.get(entry.getValue());
+			if (unmodifiableClass == null) {
+				unmodifiableClass = Collections.unmodifiableSet(
+						new HashSet<Attribute>(entry.getValue()));
+				unmodifiableClasses.put(entry.getValue(), unmodifiableClass);
+			}
+			result.put(entry.getKey(), unmodifiableClass);
+		}
+		return result;
+	}
+
+	private static Set<Attribute> getClass(
+		Map<Attribute, Set<Attribute>> equivalenceClasses, Attribute attribute) {
+		Set<Attribute> equivalenceClass = equivalenceClasses.get(attribute);
+		if (equivalenceClass == null) {
+			equivalenceClass = new HashSet<Attribute>();
+			equivalenceClass.add(attribute);
+			equivalenceClasses.put(attribute, equivalenceClass);
+		}
+		return equivalenceClass;
+	}
+}
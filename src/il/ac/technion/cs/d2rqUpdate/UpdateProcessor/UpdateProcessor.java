@@ -18,6 +18,11 @@
 
 package il.ac.technion.cs.d2rqUpdate.UpdateProcessor;
 
+import il.ac.technion.cs.d2rqUpdate.SQLUpdateExecutionEngine.UpdateConnections;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
 import com.hp.hpl.jena.sparql.engine.binding.Binding;
 import com.hp.hpl.jena.sparql.modify.UpdateProcessorFactory;
 import com.hp.hpl.jena.sparql.modify.UpdateVisitor;
@@ -31,6 +36,8 @@ import com.hp.hpl.jena.update.UpdateRequest;
  *
  */
 public class UpdateProcessor implements com.hp.hpl.jena.update.UpdateProcessor {
+	static private Log log = LogFactory.getLog(
+		il.ac.technion.cs.d2rqUpdate.UpdateProcessor.UpdateProcessor.class);
 	
 	private final GraphStore graphStore;
 	private final UpdateRequest request;
@@ -45,14 +52,39 @@ public class UpdateProcessor implements com.hp.hpl.jena.update.UpdateProcessor {
 
 	public void execute() {
 		graphStore.startRequest();
-		UpdateVisitor v = 
-			new 
-			il.ac.technion.cs.d2rqUpdate.UpdateProcessor.UpdateProcessorVisitor(
-													  graphStore, inputBinding);
-		for (Update update : request.getUpdates()) {
-			update.visit(v);
+		boolean succeeded = false;
+		try {
+			UpdateVisitor v = 
+				new 
+				il.ac.technion.cs.d2rqUpdate.UpdateProcessor.UpdateProcessorVisitor(
+														  graphStore, inputBinding);
+			for (Update update : request.getUpdates()) {
+				update.visit(v);
+			}
+			succeeded = true;
+		}
+		finally {
+			if (succeeded) {
+				graphStore.finishRequest();
+			} else {
+				rollback();
+			}
+		}
+	}
+
+	/**
+	 * Rolls back the failed request. A failure of the rollback or of the 
+	 * release of the connections is logged, so that the failure of the 
+	 * request is the one thrown.
+	 */
+	private void rollback() {
+		UpdateConnections.setRollbackOnly();
+		try {
+			graphStore.finishRequest();
+		} catch (RuntimeException exception) {
+			log.error("the failed request could not be rolled back", 
+					exception);
 		}
-		graphStore.finishRequest();
 	}
 
 	public static UpdateProcessorFactory getFactory() {
@@ -44,8 +44,10 @@ public class UpdateStatementBuilder extends StatementBuilder {
 	}
 	
 	@Override
-	public String getSQLStatement() {		
-		StringBuffer result = new StringBuffer("UPDATE ");
+	protected String buildSQLStatement() {		
+		StringBuilder result = 
+			createBuffer(updateValues.size() + conditionValues.size());
+		result.append("UPDATE ");
 		
 		result.append(quoteRelationName(getTable()));
 		
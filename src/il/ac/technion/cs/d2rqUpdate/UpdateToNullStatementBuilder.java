@@ -0,0 +1,91 @@
+/*
+   Copyright 2010 Technion - Israel Institute of Technology
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package il.ac.technion.cs.d2rqUpdate;
+
+import java.util.Collections;
+import java.util.Map;
+
+import de.fuberlin.wiwiss.d2rq.algebra.Attribute;
+import de.fuberlin.wiwiss.d2rq.algebra.RelationName;
+import de.fuberlin.wiwiss.d2rq.sql.ConnectedDB;
+
+/**
+ * Builds a single UPDATE statement that sets several columns of the rows of
+ * a subject to NULL, each column only in the rows where it has its deleted 
+ * value:
+ * 
+ * <pre>
+ * UPDATE t SET a = CASE WHEN t.a = 1 THEN NULL ELSE t.a END, 
+ *              b = CASE WHEN t.b = 'x' THEN NULL ELSE t.b END 
+ * WHERE t.id = 5 AND ( t.a = 1 OR t.b = 'x' )
+ * </pre>
+ * 
+ * A single column is set by a plain UPDATE t SET a = NULL WHERE t.id = 5 
+ * AND ( t.a = 1 ).
+ * 
+ * @author Vadim Eisenberg <Vadim.Eisenberg@gmail.com>
+ */
+public class UpdateToNullStatementBuilder extends StatementBuilder {
+	private final Map<Attribute, String> subjectValues;
+	private final Map<Attribute, String> deletedValues;
+
+	/**
+	 * @param subjectValues
+	 * @param deletedValues the columns to set to NULL and their deleted
+	 * values
+	 */
+	public UpdateToNullStatementBuilder(RelationName table,
+		ConnectedDB database, Map<Attribute, String> subjectValues,
+		Map<Attribute, String> deletedValues) {
+		super(table, database);
+		this.subjectValues = subjectValues;
+		this.deletedValues = deletedValues;
+	}
+
+	@Override
+	protected String buildSQLStatement() {
+		StringBuilder result = 
+			createBuffer(subjectValues.size() + 3 * deletedValues.size());
+		result.append("UPDATE ");
+		result.append(quoteRelationName(getTable()));
+		result.append(" SET ");
+
+		Separator separator = new Separator(",");
+		for (Attribute column : deletedValues.keySet()) {
+			result.append(separator)
+				.append(toSQL(column, getDatabase(), false)).append(" = ");
+			if (deletedValues.size() == 1) {
+				result.append("NULL ");
+				continue;
+			}
+			result.append("CASE WHEN ");
+			appendSeparatedEqualities(result, Collections.singletonMap(column,
+					deletedValues.get(column)), "AND", true);
+			result.append("THEN NULL ELSE ")
+				.append(toSQL(column, getDatabase(), true)).append(" END ");
+		}
+
+		result.append(" WHERE ");
+		if (!subjectValues.isEmpty()) {
+			appendSeparatedEqualities(result, subjectValues, "AND", true);
+			result.append("AND ");
+		}
+		result.append("( ");
+		appendSeparatedEqualities(result, deletedValues, "OR", true);
+		result.append(") ");
+		return result.toString();
+	}
+}
@@ -0,0 +1,229 @@
+/*
+   Copyright 2010 Technion - Israel Institute of Technology
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package il.ac.technion.cs.d2rqUpdate;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.fuberlin.wiwiss.d2rq.algebra.Attribute;
+import de.fuberlin.wiwiss.d2rq.algebra.RelationName;
+import de.fuberlin.wiwiss.d2rq.sql.ConnectedDB;
+
+/**
+ * Builds a statement that inserts a row or, if a row with the same primary
+ * key exists, sets its object columns, by a single statement instead of a 
+ * query for the existence of the row followed by an INSERT or an UPDATE. 
+ * As in the UPDATE of an existing row, an object column is set only if it 
+ * is NULL or already has the value, and the subject columns that are not in
+ * the primary key must have their values; otherwise no row is updated.
+ * 
+ * <pre>
+ * PostgreSQL:
+ * INSERT INTO t AS T (id, name) VALUES (1, 'x') ON CONFLICT (id) 
+ * DO UPDATE SET name = EXCLUDED.name 
+ * WHERE (T.name IS NULL OR T.name = EXCLUDED.name)
+ * 
+ * H2 (SQL:2003 MERGE):
+ * MERGE INTO t T USING (VALUES (1, 'x')) S (id, name) ON (T.id = S.id)
+ * WHEN MATCHED AND (T.name IS NULL OR T.name = S.name) 
+ * THEN UPDATE SET name = S.name
+ * WHEN NOT MATCHED THEN INSERT (id, name) VALUES (S.id, S.name)
+ * </pre>
+ * 
+ * MySQL is not supported: INSERT ... ON DUPLICATE KEY UPDATE reports the 
+ * same number of rows whether the guarded columns were set or kept, so a 
+ * row that already has another value could not be told apart.
+ * 
+ * @author Vadim Eisenberg <Vadim.Eisenberg@gmail.com>
+ */
+public class UpsertStatementBuilder extends StatementBuilder {
+	private static final String TARGET = "T";
+	private static final String SOURCE = "S";
+	private static final String EXCLUDED = "EXCLUDED";
+
+	private final List<Attribute> columns;
+	private final Map<Attribute, String> values;
+	private final List<Attribute> keyColumns;
+	// the columns of the existing row that must have the values
+	private final List<Attribute> matchedColumns = new ArrayList<Attribute>();
+	// the columns of the existing row that are set, if NULL
+	private final List<Attribute> updatedColumns = new ArrayList<Attribute>();
+
+	/**
+	 * @param keyColumns the primary key of the table, all of its columns 
+	 * must have values
+	 * @param subjectValues
+	 * @param objectValues
+	 */
+	public UpsertStatementBuilder(RelationName table, ConnectedDB database, 
+		List<Attribute> keyColumns, Map<Attribute, String> subjectValues, 
+		Map<Attribute, String> objectValues) {
+		super(table, database);
+		this.keyColumns = keyColumns;
+		this.values = new LinkedHashMap<Attribute, String>(subjectValues);
+		this.values.putAll(objectValues);
+		this.columns = new ArrayList<Attribute>(values.keySet());
+		
+		for (Attribute column : subjectValues.keySet()) {
+			if (!keyColumns.contains(column) && 
+					!objectValues.containsKey(column)) {
+				matchedColumns.add(column);
+			}
+		}
+		for (Attribute column : objectValues.keySet()) {
+			if (!keyColumns.contains(column)) {
+				updatedColumns.add(column);
+			}
+		}
+	}
+
+	/**
+	 * @return whether the database supports the statement
+	 */
+	public static boolean supports(ConnectedDB database) {
+		return database.dbTypeIs(ConnectedDB.PostgreSQL) || isH2(database);
+	}
+
+	/**
+	 * @return 1 if an existing row is updated, 0 if the row is only inserted
+	 * when it does not exist, since there are no columns to update
+	 */
+	public int getMinimalNumberOfUpdatedRows() {
+		return updatedColumns.isEmpty() ? 0 : 1;
+	}
+
+	@Override
+	protected String buildSQLStatement() {
+		if (isH2(getDatabase())) {
+			return buildMerge();
+		}
+		return buildInsertOnConflict();
+	}
+
+	private String buildInsertOnConflict() {
+		StringBuilder result = createBuffer(4 * columns.size());
+		result.append("INSERT INTO ");
+		result.append(quoteRelationName(getTable())).append(" AS ")
+			.append(TARGET).append(" (");
+		appendColumns(result, columns, null);
+		result.append(") VALUES (");
+		appendValues(result);
+		result.append(") ON CONFLICT (");
+		appendColumns(result, keyColumns, null);
+		result.append(")");
+		
+		if (updatedColumns.isEmpty()) {
+			result.append(" DO NOTHING");
+			return result.toString();
+		}
+		result.append(" DO UPDATE SET ");
+		appendAssignments(result, EXCLUDED);
+		result.append(" WHERE ");
+		appendGuard(result, EXCLUDED);
+		return result.toString();
+	}
+
+	private String buildMerge() {
+		StringBuilder result = createBuffer(4 * columns.size());
+		result.append("MERGE INTO ");
+		result.append(quoteRelationName(getTable())).append(' ')
+			.append(TARGET);
+		result.append(" USING (VALUES (");
+		appendValues(result);
+		result.append(")) ").append(SOURCE).append(" (");
+		appendColumns(result, columns, null);
+		result.append(") ON (");
+		Separator separator = new Separator("AND");
+		for (Attribute column : keyColumns) {
+			result.append(separator).append(qualified(TARGET, column))
+				.append(" = ").append(qualified(SOURCE, column)).append(' ');
+		}
+		result.append(")");
+		
+		if (!updatedColumns.isEmpty()) {
+			result.append(" WHEN MATCHED AND ");
+			appendGuard(result, SOURCE);
+			result.append(" THEN UPDATE SET ");
+			appendAssignments(result, SOURCE);
+		}
+		result.append(" WHEN NOT MATCHED THEN INSERT (");
+		appendColumns(result, columns, null);
+		result.append(") VALUES (");
+		appendColumns(result, columns, SOURCE);
+		result.append(")");
+		return result.toString();
+	}
+
+	private void appendValues(StringBuilder result) {
+		Separator separator = new Separator(",");
+		for (Attribute column : columns) {
+			result.append(separator).append(valueToSQL(values.get(column)));
+		}
+	}
+
+	private void appendColumns(StringBuilder result, List<Attribute> columns,
+		String qualifier) {
+		if (qualifier == null) {
+			result.append(columnList(columns));
+			return;
+		}
+		Separator separator = new Separator(",");
+		for (Attribute column : columns) {
+			result.append(separator).append(qualified(qualifier, column));
+		}
+	}
+
+	private void appendAssignments(StringBuilder result, String source) {
+		Separator separator = new Separator(",");
+		for (Attribute column : updatedColumns) {
+			result.append(separator)
+				.append(toSQL(column, getDatabase(), false)).append(" = ")
+				.append(qualified(source, column)).append(' ');
+		}
+	}
+
+	/**
+	 * Appends the condition on the existing row: the updated columns are 
+	 * NULL or have the new values, the matched columns have their values
+	 */
+	private void appendGuard(StringBuilder result, String source) {
+		Separator separator = new Separator("AND");
+		for (Attribute column : updatedColumns) {
+			String target = qualified(TARGET, column);
+			result.append(separator).append('(').append(target)
+				.append(" IS NULL OR ").append(target).append(" = ")
+				.append(qualified(source, column)).append(") ");
+		}
+		for (Attribute column : matchedColumns) {
+			result.append(separator).append(qualified(TARGET, column))
+				.append(" = ").append(qualified(source, column)).append(' ');
+		}
+	}
+
+	private String qualified(String qualifier, Attribute column) {
+		return qualifier + "." + toSQL(column, getDatabase(), false);
+	}
+
+	/**
+	 * D2RQ has no database type for H2, it is recognized by the JDBC URL
+	 */
+	private static boolean isH2(ConnectedDB database) {
+		return database.getJdbcURL() != null && 
+			database.getJdbcURL().startsWith("jdbc:h2:");
+	}
+}
@@ -16,18 +16,23 @@
 
 package il.ac.technion.cs.d2rqUpdate.assembler;
 import il.ac.technion.cs.d2rqUpdate.ModelD2RQUpdate;
+import il.ac.technion.cs.d2rqUpdate.UpdateConfiguration;
 
 import com.hp.hpl.jena.assembler.Assembler;
 import com.hp.hpl.jena.assembler.Mode;
 import com.hp.hpl.jena.assembler.assemblers.AssemblerBase;
+import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.Resource;
 import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.util.FileManager;
 
 import de.fuberlin.wiwiss.d2rq.D2RQException;
 import de.fuberlin.wiwiss.d2rq.vocab.D2RQ;
 
 /**
- * A Jena assembler that builds ModelD2RQUpdates.
+ * A Jena assembler that builds ModelD2RQUpdates. The D2RQ/Update settings
+ * (e.g. d2rqu:connectionPoolSize) may be given in the description of the
+ * model, overriding the d2rqu:UpdateConfiguration of the mapping.
  * 
  * @author Vadim Eisenberg Vadim.Eisenberg@gmail.com
  */
@@ -57,6 +62,11 @@ public class D2RQUpdateAssembler extends AssemblerBase {
 			}
 			resourceBaseURI = ((Resource) stmt.getObject()).getURI();
 		}
-		return new ModelD2RQUpdate(mappingFileURI, null, resourceBaseURI);
+		Model mapModel = FileManager.get().loadModel(mappingFileURI);
+		UpdateConfiguration updateConfiguration = 
+			new UpdateConfiguration(mapModel);
+		updateConfiguration.read(description);
+		return new ModelD2RQUpdate(mapModel, (resourceBaseURI == null) ? 
+				mappingFileURI + "#" : resourceBaseURI, updateConfiguration);
 	}
 }
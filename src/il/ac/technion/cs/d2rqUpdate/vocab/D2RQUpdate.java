@@ -0,0 +1,92 @@
+/*
+   Copyright 2010 Technion - Israel Institute of Technology
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package il.ac.technion.cs.d2rqUpdate.vocab;
+
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.ResourceFactory;
+
+/**
+ * Vocabulary of the D2RQ/Update specific settings, which may appear in a 
+ * D2RQ mapping next to the D2RQ vocabulary
+ * 
+ * @author Vadim Eisenberg <Vadim.Eisenberg@gmail.com>
+ * 
+ * @see de.fuberlin.wiwiss.d2rq.vocab.D2RQ
+ */
+public class D2RQUpdate {
+	public static final String NS = "http://cs.technion.ac.il/d2rqUpdate/0.1#";
+
+	public static String getURI() {
+		return NS;
+	}
+
+	public static final Resource UpdateConfiguration = 
+		ResourceFactory.createResource(NS + "UpdateConfiguration");
+
+	/** The maximal number of statements sent to the database in one batch */
+	public static final Property batchSize = 
+		ResourceFactory.createProperty(NS + "batchSize");
+
+	/** Whether to commit after each batch, instead of once after all of them */
+	public static final Property commitEveryBatch = 
+		ResourceFactory.createProperty(NS + "commitEveryBatch");
+
+	/** The maximal number of rows inserted by a single INSERT statement */
+	public static final Property maxRowsPerInsert = 
+		ResourceFactory.createProperty(NS + "maxRowsPerInsert");
+
+	/** The maximal number of rows deleted by a single DELETE statement */
+	public static final Property maxRowsPerDelete = 
+		ResourceFactory.createProperty(NS + "maxRowsPerDelete");
+
+	/** The maximal number of connections an update is executed on concurrently */
+	public static final Property parallelism = 
+		ResourceFactory.createProperty(NS + "parallelism");
+
+	/** Whether to insert or update the rows of added triples by upserts */
+	public static final Property upsert = 
+		ResourceFactory.createProperty(NS + "upsert");
+
+	/** The maximal number of pooled connections the updates are executed on */
+	public static final Property connectionPoolSize = 
+		ResourceFactory.createProperty(NS + "connectionPoolSize");
+
+	/** The maximal time to wait for a pooled connection, in milliseconds */
+	public static final Property connectionWaitTimeout = 
+		ResourceFactory.createProperty(NS + "connectionWaitTimeout");
+
+	/** A class implementing ConnectionProvider, replacing the pool */
+	public static final Property connectionProviderClass = 
+		ResourceFactory.createProperty(NS + "connectionProviderClass");
+
+	/** The number of streamed triples added together */
+	public static final Property streamWindowSize = 
+		ResourceFactory.createProperty(NS + "streamWindowSize");
+
+	/** Whether to trace all the executed SQL statements */
+	public static final Property sqlTrace = 
+		ResourceFactory.createProperty(NS + "sqlTrace");
+
+	/** The duration in milliseconds above which statements are slow */
+	public static final Property slowStatementThreshold = 
+		ResourceFactory.createProperty(NS + "slowStatementThreshold");
+
+	/** Whether to register the metrics of the updates as MBeans */
+	public static final Property jmxMetrics = 
+		ResourceFactory.createProperty(NS + "jmxMetrics");
+}